@@ -0,0 +1,327 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.ParameterSet;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureInvocationExtensions;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+import org.voltdb.utils.SerializationHelper;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Stand-in for a VoltDB cluster, answering @Statistics with generated
+ * or recorded tables, for testing the agent without VoltDB.
+ *
+ * It speaks enough of the VoltDB client wire protocol for the VoltDB
+ * client library: any login is accepted, @Statistics and @Ping are
+ * answered, and any other procedure fails as not found. One server
+ * plays the part of every host of the cluster; the hosts appear only
+ * in the statistics.
+ *
+ * Options:
+ *
+ *  --port=N               port to listen on (21212)
+ *  --hosts=N              cardinality of generated tables (see
+ *  --partitions=N         StatsTables): hosts x partitions x names
+ *  --names=N              (default 3 x 8 x 20)
+ *  --latency=MS           delay before each response (0)
+ *  --jitter=MS            further random delay, up to MS (0)
+ *  --errorpercent=N       percentage of @Statistics calls that fail (0)
+ *  --disconnectpercent=N  percentage of @Statistics calls on which the
+ *                         connection is closed instead (0)
+ *  --unsupported=SEL,...  selectors rejected as unknown to the server
+ *  --tables=DIR           recorded tables: DIR/SELECTOR.json, as written
+ *                         by VoltTable.toJSONString(), is served as is
+ *                         for that selector
+ *
+ * Generated tables change with each call (see StatsTables), so that
+ * the agent sees counters increase. They are generated and sent on a
+ * pool of responder threads, not on the network threads, so that a
+ * large table delays only its own response.
+ */
+public class FakeVoltDBServer {
+
+    private static final VoltLogger logger = new VoltLogger("CONSOLE");
+
+    private static final int MAX_MESSAGE = 50 * 1024 * 1024;
+    private static final int RESPONDERS = 4;
+    private static final String BUILD_STRING = "voltdb-stand-in";
+
+    private int m_hosts = 3;
+    private int m_partitions = 8;
+    private int m_names = 20;
+    private long m_latencyMs = 0;
+    private long m_jitterMs = 0;
+    private int m_errorPercent = 0;
+    private int m_disconnectPercent = 0;
+    private final Set<SupportedStatsSelectors> m_unsupported = EnumSet.noneOf(SupportedStatsSelectors.class);
+    private final Map<SupportedStatsSelectors, VoltTable> m_recorded = new EnumMap<>(SupportedStatsSelectors.class);
+
+    private final Map<SupportedStatsSelectors, AtomicLong> m_ticks = new EnumMap<>(SupportedStatsSelectors.class);
+    private final AtomicLong m_connectionIds = new AtomicLong();
+    private final long m_startTime = System.currentTimeMillis();
+    private final ScheduledExecutorService m_responders = Executors.newScheduledThreadPool(RESPONDERS, r -> {
+        Thread t = new Thread(r, "Stand-in responder");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void main(String[] args) throws Exception {
+        FakeVoltDBServer server = new FakeVoltDBServer();
+        int port = 21212;
+        for (String arg : args) {
+            if (arg.startsWith("--port")) {
+                port = VoltDBPrometheusAgent.extractArgInteger(arg, 1, 65535);
+            } else if (arg.startsWith("--hosts")) {
+                server.m_hosts = VoltDBPrometheusAgent.extractArgInteger(arg, 1, 1000);
+            } else if (arg.startsWith("--partitions")) {
+                server.m_partitions = VoltDBPrometheusAgent.extractArgInteger(arg, 1, 10_000);
+            } else if (arg.startsWith("--names")) {
+                server.m_names = VoltDBPrometheusAgent.extractArgInteger(arg, 1, 100_000);
+            } else if (arg.startsWith("--latency")) {
+                server.m_latencyMs = VoltDBPrometheusAgent.extractArgInteger(arg, 0, 600_000);
+            } else if (arg.startsWith("--jitter")) {
+                server.m_jitterMs = VoltDBPrometheusAgent.extractArgInteger(arg, 0, 600_000);
+            } else if (arg.startsWith("--errorpercent")) {
+                server.m_errorPercent = VoltDBPrometheusAgent.extractArgInteger(arg, 0, 100);
+            } else if (arg.startsWith("--disconnectpercent")) {
+                server.m_disconnectPercent = VoltDBPrometheusAgent.extractArgInteger(arg, 0, 100);
+            } else if (arg.startsWith("--unsupported")) {
+                for (String name : VoltDBPrometheusAgent.extractArgString(arg).split(",")) {
+                    server.m_unsupported.add(selector(name.trim()));
+                }
+            } else if (arg.startsWith("--tables")) {
+                server.loadTables(Paths.get(VoltDBPrometheusAgent.extractArgString(arg)));
+            } else {
+                System.err.println("Error: invalid parameter " + arg);
+                System.exit(1);
+            }
+        }
+        server.run(port);
+    }
+
+    private static SupportedStatsSelectors selector(String name) {
+        try {
+            return SupportedStatsSelectors.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: invalid statistics selector " + name);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private void loadTables(Path dir) {
+        for (SupportedStatsSelectors selector : SupportedStatsSelectors.values()) {
+            Path file = dir.resolve(selector.name() + ".json");
+            if (Files.exists(file)) {
+                try {
+                    String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                    m_recorded.put(selector, VoltTable.fromJSONString(json));
+                } catch (Exception ex) {
+                    System.err.println("Error: cannot read recorded table " + file + ": " + ex.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves until the process is killed.
+     */
+    public void run(int port) throws InterruptedException {
+        for (SupportedStatsSelectors selector : SupportedStatsSelectors.values()) {
+            m_ticks.put(selector, new AtomicLong());
+        }
+        EventLoopGroup boss = new NioEventLoopGroup(1);
+        EventLoopGroup workers = new NioEventLoopGroup();
+        try {
+            ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(boss, workers)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_MESSAGE, 0, 4, 0, 4),
+                                              new ConnectionHandler());
+                    }
+                });
+            Channel channel = bootstrap.bind(port).sync().channel();
+            logger.info(String.format("VoltDB stand-in listening on port %d: %d hosts x %d partitions x %d names, "
+                                      + "latency %d+%d msec, %d%% errors, %d%% disconnects, recorded %s",
+                                      port, m_hosts, m_partitions, m_names, m_latencyMs, m_jitterMs,
+                                      m_errorPercent, m_disconnectPercent, m_recorded.keySet()));
+            channel.closeFuture().sync();
+        } finally {
+            boss.shutdownGracefully();
+            workers.shutdownGracefully();
+        }
+    }
+
+    /*
+     * One client connection: a login message, then invocations.
+     * Messages arrive without their length prefix.
+     */
+    private class ConnectionHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        private boolean m_loggedIn;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            ByteBuffer buf = msg.nioBuffer();
+            if (!m_loggedIn) {
+                m_loggedIn = true;
+                ctx.writeAndFlush(loginResponse());
+                return;
+            }
+            invoke(ctx.channel(), buf);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Closing connection: " + cause);
+            ctx.close();
+        }
+    }
+
+    /*
+     * Login response: version, result (0 for success), host id,
+     * connection id, cluster start time, leader address, build string.
+     */
+    private ByteBuf loginResponse() {
+        byte[] build = BUILD_STRING.getBytes(StandardCharsets.UTF_8);
+        ByteBuf out = Unpooled.buffer();
+        out.writeInt(1 + 1 + 4 + 8 + 8 + 4 + 4 + build.length);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeInt(0);
+        out.writeLong(m_connectionIds.incrementAndGet());
+        out.writeLong(m_startTime);
+        out.writeInt(0x7f000001);
+        out.writeInt(build.length);
+        out.writeBytes(build);
+        return out;
+    }
+
+    /*
+     * An invocation, as written by ProcedureInvocation: version,
+     * procedure name, client handle, extensions, parameters.
+     */
+    private void invoke(Channel channel, ByteBuffer buf) throws IOException {
+        buf.get(); // version
+        String procedure = SerializationHelper.getString(buf);
+        long handle = buf.getLong();
+        int extensions = buf.get();
+        for (int i = 0; i < extensions; i++) {
+            switch (ProcedureInvocationExtensions.readNextType(buf)) {
+            case ProcedureInvocationExtensions.BATCH_TIMEOUT:
+                ProcedureInvocationExtensions.readBatchTimeout(buf);
+                break;
+            case ProcedureInvocationExtensions.ALL_PARTITION:
+                ProcedureInvocationExtensions.readAllPartition(buf);
+                break;
+            case ProcedureInvocationExtensions.PARTITION_DESTINATION:
+                ProcedureInvocationExtensions.readPartitionDestination(buf);
+                break;
+            default:
+                ProcedureInvocationExtensions.skipUnknownExtension(buf);
+                break;
+            }
+        }
+        Object[] params = ParameterSet.fromByteBuffer(buf).toArray();
+
+        long delay = m_latencyMs + (m_jitterMs > 0 ? ThreadLocalRandom.current().nextLong(m_jitterMs + 1) : 0);
+        m_responders.schedule(() -> respond(channel, handle, procedure, params), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void respond(Channel channel, long handle, String procedure, Object[] params) {
+        ClientResponseImpl response;
+        if (procedure.equals("@Ping")) {
+            response = new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[0], null);
+        } else if (procedure.equals("@Statistics")) {
+            response = statistics(params.length > 0 ? String.valueOf(params[0]) : "");
+            if (response == null) {
+                channel.close();
+                return;
+            }
+        } else {
+            response = new ClientResponseImpl(ClientResponse.GRACEFUL_FAILURE, new VoltTable[0],
+                                              "Procedure " + procedure + " was not found");
+        }
+        response.setClientHandle(handle);
+        ByteBuffer body = ByteBuffer.allocate(response.getSerializedSize());
+        response.flattenToBuffer(body);
+        body.flip();
+        ByteBuf out = Unpooled.buffer(4 + body.remaining());
+        out.writeInt(body.remaining());
+        out.writeBytes(body);
+        channel.writeAndFlush(out);
+    }
+
+    /*
+     * Response to @Statistics for a selector, or null to drop the
+     * connection instead. Unsupported selectors always fail, as they
+     * would on a server that does not have them; injected faults only
+     * apply to the others.
+     */
+    private ClientResponseImpl statistics(String name) {
+        SupportedStatsSelectors selector = null;
+        try {
+            selector = SupportedStatsSelectors.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            // not one of ours
+        }
+        if (selector == null || m_unsupported.contains(selector)) {
+            return new ClientResponseImpl(ClientResponse.GRACEFUL_FAILURE, new VoltTable[0],
+                                          "Invalid statistics selector " + name);
+        }
+        int roll = ThreadLocalRandom.current().nextInt(100);
+        if (roll < m_disconnectPercent) {
+            return null;
+        }
+        if (roll < m_disconnectPercent + m_errorPercent) {
+            return new ClientResponseImpl(ClientResponse.UNEXPECTED_FAILURE, new VoltTable[0], "Injected failure");
+        }
+        VoltTable table = m_recorded.get(selector);
+        if (table == null) {
+            table = StatsTables.table(VoltDBPrometheusMetricEngine.callbackClass(selector),
+                                      m_hosts, m_partitions, m_names, m_ticks.get(selector).getAndIncrement());
+        }
+        return new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[] { table }, null);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Decoding of one @Statistics response by each statistics callback,
+ * as done on the client callback thread at every collection: the
+ * response is processed into the callback's stores, and the cycle
+ * ended as the engine does after a successful call.
+ *
+ * Each case is a selector and a cardinality, hosts x partitions x
+ * names (see StatsTables), as in a large cluster: 16 hosts with 24
+ * partitions each, so about 100k TABLE and INDEX rows, 20k PROCEDURE
+ * rows, and so on. Run with '-prof gc' for allocation rates.
+ * The same response is processed at each invocation, so after the
+ * first, every series already exists, as in steady state.
+ *
+ * With decoder threads, and more than one processor, tables of at
+ * least PARALLEL_ROWS rows are decoded in parallel (the processing
+ * is done on the benchmark thread, as it would be on one decoder
+ * thread); with none, all decoding is serial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessResultBenchmark {
+
+    @Param({ "TABLE:16x24x260", "INDEX:16x24x260", "PROCEDURE:16x24x52", "INITIATOR:16x25x50",
+             "EXPORT:16x24x5", "LIVECLIENTS:16x300x1", "IOSTATS:16x64x1", "QUEUEPRIORITY:16x24x8",
+             "IDLETIME:16x24x1", "QUEUE:16x24x1", "COMMANDLOG:16x1x1", "CPU:16x1x1", "GC:16x1x1",
+             "LATENCY:16x1x1", "MEMORY:16x1x1", "LATENCY_HISTOGRAM:16x1x1" })
+    public String selectorCardinality;
+
+    @Param({ "false", "true" })
+    public boolean counterMode;
+
+    @Param({ "0", "4" })
+    public int decodeThreads;
+
+    private AbstractStatsProcedureCallback m_cb;
+    private ClientResponse m_response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] parts = selectorCardinality.split("[:x]");
+        SupportedStatsSelectors selector = SupportedStatsSelectors.valueOf(parts[0]);
+        VoltDBPrometheusMetricEngine engine =
+            new VoltDBPrometheusMetricEngine("localhost", 21212, "", "", false, null);
+        engine.setCounterMode(counterMode);
+        engine.setDecodeThreads(decodeThreads);
+        engine.setSupportedStats(EnumSet.of(selector));
+        m_cb = engine.getCallback(selector);
+        m_response = StatsTables.response(m_cb, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                                          Integer.parseInt(parts[3]));
+    }
+
+    @Benchmark
+    public int processResponse() throws Exception {
+        for (VoltTable table : m_response.getResults()) {
+            table.resetRowPosition();
+        }
+        m_cb.startCall(null).clientCallback(m_response);
+        if (!m_cb.lastCallSucceeded()) {
+            throw new IllegalStateException(m_cb.lastStatusString());
+        }
+        return m_cb.endCycle(VoltDBPrometheusMetricEngine.DEFAULT_EVICT_AFTER);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Rendering and serving of metrics, with 10k to 1M series.
+ *
+ * The series are those of the TABLE selector (four metrics per row) for
+ * 10 hosts with 25 partitions each, loaded once. 'render' is the work
+ * done once per collection: every store rendered in text, which is
+ * always rendered, and in the given format if that is another. 'serve'
+ * is the work done per scrape by PrometheusServlet.continueGet for one
+ * snapshot: a copy of the cached (possibly compressed) bytes, plus the
+ * agent's snapshot metrics. 'serveFiltered' is a scrape limited by
+ * name[], which merges and filters families, and compresses on the fly.
+ *
+ * Run with '-prof gc' for allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class RenderBenchmark {
+
+    private static final int METRICS_PER_ROW = 4; // TABLE
+    private static final int HOSTS = 10;
+    private static final int PARTITIONS = 25;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int series;
+
+    @Param({ "TEXT", "OPENMETRICS", "PROTOBUF" })
+    public ExpositionFormat format;
+
+    private VoltDBPrometheusMetricEngine m_engine;
+    private MetricsSnapshot m_snapshot;
+
+    /**
+     * A scrape, which may accept gzip
+     */
+    @State(Scope.Thread)
+    public static class Scrape {
+        @Param({ "true", "false" })
+        public boolean gzip;
+
+        private PrometheusServlet m_servlet;
+        private HttpServletRequest m_request;
+        private HttpServletResponse m_response;
+        private final CountingOutputStream m_out = new CountingOutputStream();
+
+        @Setup(Level.Trial)
+        public void setup(RenderBenchmark bench) {
+            m_servlet = new PrometheusServlet(Collections.emptyList());
+            m_request = request(bench.format.getContentType(), gzip ? "gzip" : null);
+            m_response = response(m_out);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        m_engine = new VoltDBPrometheusMetricEngine("localhost", 21212, "", "", false, null);
+        m_engine.setSupportedStats(EnumSet.of(SupportedStatsSelectors.TABLE));
+        m_engine.requestFormat(format);
+        AbstractStatsProcedureCallback cb = m_engine.getCallback(SupportedStatsSelectors.TABLE);
+        int tables = series / (METRICS_PER_ROW * HOSTS * PARTITIONS);
+        cb.startCall(null).clientCallback(StatsTables.response(cb, HOSTS, PARTITIONS, tables));
+        if (!cb.lastCallSucceeded()) {
+            throw new IllegalStateException(cb.lastStatusString());
+        }
+        long now = System.currentTimeMillis();
+        m_snapshot = new MetricsSnapshot(null, m_engine.render(), m_engine.getSelectors(), now, 0);
+    }
+
+    @Benchmark
+    public Map<ExpositionFormat, Exposition> render() {
+        return m_engine.render();
+    }
+
+    @Benchmark
+    public long serve(Scrape scrape) throws Exception {
+        scrape.m_out.reset();
+        scrape.m_servlet.continueGet(scrape.m_request, scrape.m_response,
+                                     Collections.singletonList(m_snapshot), null);
+        return scrape.m_out.count;
+    }
+
+    @Benchmark
+    public long serveFiltered(Scrape scrape) throws Exception {
+        scrape.m_out.reset();
+        scrape.m_servlet.continueGet(scrape.m_request, scrape.m_response,
+                                     Collections.singletonList(m_snapshot),
+                                     name -> name.startsWith("voltdb_table_tuple"));
+        return scrape.m_out.count;
+    }
+
+    /*
+     * Just enough of a request and response for continueGet
+     */
+
+    private static HttpServletRequest request(String accept, String acceptEncoding) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+            RenderBenchmark.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+            (proxy, method, args) -> {
+                if (method.getName().equals("getHeader")) {
+                    String header = (String) args[0];
+                    return header.equalsIgnoreCase("Accept") ? accept
+                         : header.equalsIgnoreCase("Accept-Encoding") ? acceptEncoding
+                         : null;
+                }
+                return null;
+            });
+    }
+
+    private static HttpServletResponse response(ServletOutputStream out) {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+            RenderBenchmark.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+            (proxy, method, args) -> method.getName().equals("getOutputStream") ? out : null);
+    }
+
+    private static class CountingOutputStream extends ServletOutputStream {
+        long count;
+
+        void reset() {
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.HdrHistogram_voltpatches.Histogram;
+import org.voltcore.utils.CompressionStrategy;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.types.TimestampType;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Synthetic @Statistics results, for benchmarks and the stand-in
+ * server.
+ *
+ * The columns of a selector's table are those that its callback
+ * declares in its column enums, plus the columns common to all
+ * statistics (TIMESTAMP, HOST_ID, HOSTNAME).
+ *
+ * Cardinality is given as hosts x partitions x names. Every table has
+ * rows for each host; a table with a partition, site or connection
+ * id has rows for each of 'partitions' ids per host; a table with a
+ * name column (table, procedure, ...) or a priority has rows for each
+ * of 'names' names per id. So TABLE has hosts x partitions x names
+ * rows, one per table per partition, and CPU just one row per host.
+ *
+ * Other numeric columns hold values derived from the row and column,
+ * increasing with 'tick', so that successive tables look like
+ * successive polls: counters do not go backwards.
+ *
+ * LATENCY_HISTOGRAM has no column enum; its rows carry a compressed
+ * cumulative latency histogram, as sent by VoltDB.
+ */
+final class StatsTables {
+
+    private static final CompressionStrategy SNAPPY = new CompressionStrategy() {
+        @Override
+        public byte[] compress(byte[] data) throws IOException {
+            return Snappy.compress(data);
+        }
+        @Override
+        public byte[] uncompress(byte[] data) throws IOException {
+            return Snappy.uncompress(data);
+        }
+    };
+
+    private StatsTables() {
+    }
+
+    /**
+     * A successful response holding the first table
+     * of the given cardinality for a callback.
+     */
+    static ClientResponse response(AbstractStatsProcedureCallback cb, int hosts, int partitions, int names) {
+        VoltTable table = table(cb.getClass(), hosts, partitions, names, 0);
+        return new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[] { table }, "");
+    }
+
+    /**
+     * Table of the given cardinality, in the form expected by
+     * a callback class, for poll number 'tick'.
+     */
+    static VoltTable table(Class<? extends AbstractStatsProcedureCallback> cbClass,
+                           int hosts, int partitions, int names, long tick) {
+        Map<String, VoltType> columns = new LinkedHashMap<>();
+        columns.put("TIMESTAMP", VoltType.BIGINT);
+        columns.put("HOST_ID", VoltType.INTEGER);
+        columns.put("HOSTNAME", VoltType.STRING);
+        if (cbClass == LatencyHistogramStatsCallback.class) {
+            columns.put("HISTOGRAM", VoltType.VARBINARY);
+        } else {
+            addColumns(cbClass, columns);
+        }
+
+        List<VoltTable.ColumnInfo> info = new ArrayList<>(columns.size());
+        boolean hasIds = false, hasNames = false;
+        for (Map.Entry<String, VoltType> col : columns.entrySet()) {
+            info.add(new VoltTable.ColumnInfo(col.getKey(), col.getValue()));
+            hasIds |= isId(col.getKey());
+            hasNames |= (col.getValue() == VoltType.STRING && !col.getKey().equals("HOSTNAME"))
+                        || col.getKey().equals("PRIORITY");
+        }
+        VoltTable table = new VoltTable(info.toArray(new VoltTable.ColumnInfo[0]));
+        if (!hasIds) {
+            partitions = 1;
+        }
+        if (!hasNames) {
+            names = 1;
+        }
+
+        byte[] histogram = (columns.containsKey("HISTOGRAM") ? histogram(tick) : null);
+        long now = System.currentTimeMillis();
+        Object[] values = new Object[columns.size()];
+        int row = 0;
+        for (int host = 0; host < hosts; host++) {
+            for (int id = 0; id < partitions; id++) {
+                for (int name = 0; name < names; name++, row++) {
+                    int i = 0;
+                    for (Map.Entry<String, VoltType> col : columns.entrySet()) {
+                        values[i] = value(col.getKey(), col.getValue(), host, id, name, row, i, tick, now, histogram);
+                        i++;
+                    }
+                    table.addRow(values);
+                }
+            }
+        }
+        return table;
+    }
+
+    /*
+     * Columns declared by the callback class: every constant of
+     * its nested enums that has a VoltType, named by its alias
+     * if it has one (statistics column names are not always
+     * valid Java names).
+     */
+    private static void addColumns(Class<?> cbClass, Map<String, VoltType> columns) {
+        try {
+            for (Class<?> nested : cbClass.getClasses()) {
+                if (!nested.isEnum()) {
+                    continue;
+                }
+                Field type = nested.getField("m_type");
+                Field alias = null;
+                try {
+                    alias = nested.getField("m_alias");
+                } catch (NoSuchFieldException ex) {
+                    // named by the constant
+                }
+                for (Object constant : nested.getEnumConstants()) {
+                    String name = (alias != null ? (String) alias.get(constant) : ((Enum<?>) constant).name());
+                    columns.putIfAbsent(name, (VoltType) type.get(constant));
+                }
+            }
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Cannot find columns of " + cbClass.getSimpleName(), ex);
+        }
+    }
+
+    private static boolean isId(String column) {
+        return column.equals("PARTITION_ID") || column.equals("SITE_ID") || column.equals("CONNECTION_ID");
+    }
+
+    private static Object value(String column, VoltType type, int host, int id, int name,
+                                int row, int col, long tick, long now, byte[] histogram) {
+        switch (column) {
+        case "TIMESTAMP":
+            return now;
+        case "HOST_ID":
+            return host;
+        case "HOSTNAME":
+            return "host" + host;
+        case "PRIORITY":
+            return (short) name;
+        default:
+            break;
+        }
+        if (isId(column)) {
+            return (type == VoltType.BIGINT ? (Object) (long) id : (Object) id);
+        }
+        long x = mix(row * 1_000_003L + col);
+        long base = (x >>> 1) % 1_000_000;
+        long increment = (x >>> 40) % 1_000;
+        long number = base + tick * increment;
+        switch (type) {
+        case STRING:
+            return column.toLowerCase() + "_" + name;
+        case VARBINARY:
+            return histogram;
+        case TIMESTAMP:
+            return new TimestampType(now * 1000);
+        case TINYINT:
+            return (byte) (name & 1);
+        case SMALLINT:
+            return (short) (number % Short.MAX_VALUE);
+        case INTEGER:
+            return (int) (number % Integer.MAX_VALUE);
+        case BIGINT:
+            return number;
+        case FLOAT:
+            return (x >>> 11) * 0x1.0p-53 * 100;
+        default:
+            throw new IllegalArgumentException("Unexpected column type " + type + " for " + column);
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /*
+     * Cumulative histogram of latencies (microseconds) from 100 usec
+     * to 50 msec, growing with each tick.
+     */
+    private static byte[] histogram(long tick) {
+        Histogram h = new Histogram(60_000_000L, 2);
+        for (long micros = 100, weight = 1000; micros <= 50_000; micros *= 2, weight /= 2) {
+            h.recordValueWithCount(micros, (weight + 1) * (tick + 1));
+        }
+        return h.toCompressedBytes(SNAPPY);
+    }
+}
@@ -5,12 +5,23 @@
 
 package org.voltdb.prometheus;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.voltcore.logging.VoltLogger;
 import org.voltdb.VoltTable;
+import org.voltdb.VoltTableRow;
+import org.voltdb.VoltType;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ProcedureCallback;
 
@@ -20,22 +31,84 @@ import org.voltdb.client.ProcedureCallback;
  *
  * Derived classes must:
  *
- * 1. From their constructors, call addMetric for each known metric.
- *    This registers metric names with the prometheus client.
+ * 1. From their constructors, call addMetric for each known metric,
+ *    then registerAll with the label names. This creates storage for
+ *    the metrics in the engine.
  *
  * 2. Implement processResult to process the results of a call to
- *    @Statistics in VoltDB. This in turn reports current values
- *    by calling reportMetric.
+ *    @Statistics in VoltDB. This calls compile once for the result
+ *    table, to resolve metric columns; then reportRows, with a
+ *    function that sets the label values of a row, to report the
+ *    current value of every metric for every row.
+ *
+ * A selector whose result is not one value per column (such as a
+ * histogram) may instead register and report its metrics itself,
+ * using registerHistogram and reportHistogram, or registerSummary
+ * and reportSummary.
+ *
+ * A callback may also loop over the rows itself, setting the label
+ * values with label, and calling reportRow with the series id from
+ * series(); but only reportRows decodes large tables in parallel.
+ *
+ * Nothing on the per-row path allocates, apart from strings decoded
+ * by VoltTable itself (and DECIMAL values, which are rare in
+ * statistics); numeric label values are cached as strings. Parallel
+ * decoding allocates buffers for each range of rows.
  */
 public abstract class AbstractStatsProcedureCallback implements ProcedureCallback {
     private static final VoltLogger logger = new VoltLogger("CONSOLE");
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
 
     private final VoltDBPrometheusMetricEngine engine;
     private final String namespace;
 
     protected final Map<String, Metric> metricMap = new HashMap<>();
+    private SeriesStore store; // for registerAll
+    private String[] labelValues; // reused for each row
+    private RowLabels rowLabels; // wraps labelValues, for reportRows
+    private final Map<List<String>, SeriesStore> extraStores = new HashMap<>(); // for registerMetric
     protected CountDownLatch cbwaiters;
 
+    /*
+     * Each @Statistics call gets its own id. A response is only processed
+     * if it belongs to the current call and that call has not been
+     * abandoned by the engine (because its deadline expired); a late
+     * response to an earlier call is discarded. Call state is accessed
+     * synchronized on this object, which is held only to decide whether
+     * a response is to be processed, never while processing it, so that
+     * abandonCall does not wait for decoding to finish. Processing,
+     * and eviction, are serialized by the processing lock.
+     *
+     * A call abandoned while its response is being processed is not
+     * counted as successful, though the values it reports remain.
+     */
+    private long currentCallId;
+    private boolean callOpen; // awaiting response
+    private boolean callProcessing; // response being processed
+    private final Object processing = new Object();
+    private volatile boolean lastCallSucceeded;
+    private volatile byte lastStatus;
+    private volatile String lastStatusString;
+
+    /*
+     * Cost of the most recent successful call, for the agent's own
+     * metrics: round trip from startCall to response, rows in the
+     * response, and processing time of the callback thread (CPU time
+     * if the JVM measures it, else elapsed time).
+     */
+    private long callStartNanos;
+    private volatile long lastRoundTripNanos;
+    private volatile long lastRowCount;
+    private volatile long lastProcessingNanos;
+    private final AtomicLong helperNanos = new AtomicLong(); // other threads' share, in reportRows
+
+    /*
+     * Optional capture of every response processed, and the
+     * selector name it is recorded under; see StatsCapture.
+     */
+    private StatsCapture capture;
+    private String captureSelector;
+
     /**
      * Holds data about mapping from VoltDB statistics to Prometheus metrics.
      * The metricMap is keyed by VoltDB column name; the value holds the
@@ -43,7 +116,11 @@ public abstract class AbstractStatsProcedureCallback implements ProcedureCallbac
      */
     protected static class Metric {
         final private String name;
+        final private String unit;
         final private double multiplier;
+        private boolean cumulative;
+        private SeriesStore store;
+        private int column;
 
         /**
          * @param namespace  - prefix of metric names. must start with `voltdb_` then the name of
@@ -59,8 +136,19 @@ public abstract class AbstractStatsProcedureCallback implements ProcedureCallbac
                 name += "_" + unit;
             }
             this.name = name;
+            this.unit = unit;
             this.multiplier = multiplier;
         }
+
+        /**
+         * Marks the metric as a count that VoltDB accumulates from server
+         * start (when not using interval mode), so that the engine can
+         * report it as a delta.
+         */
+        public Metric cumulative() {
+            this.cumulative = true;
+            return this;
+        }
     }
     /**
      * @param engine - metrics engine, common to all statistics classes
@@ -103,41 +191,644 @@ public abstract class AbstractStatsProcedureCallback implements ProcedureCallbac
         return metric;
     }
 
+    /**
+     * Registers all metrics, which share one set of label names.
+     */
     protected void registerAll(String... labels) {
+        store = engine.createStore(labels);
+        labelValues = new String[labels.length];
+        rowLabels = new RowLabels(labelValues);
         for (Metric metric : metricMap.values()) {
-            engine.registerMetric(metric.name, labels);
+            metric.store = store;
+            metric.column = engine.registerMetric(store, metric.name, metric.unit, metric.cumulative);
         }
     }
 
+    /**
+     * Registers one metric, with its own label names. Metrics with
+     * identical label names share storage.
+     */
     protected void registerMetric(Metric metric, String... labels) {
-        engine.registerMetric(metric.name, labels);
+        metric.store = extraStore(labels);
+        metric.column = engine.registerMetric(metric.store, metric.name, metric.unit, metric.cumulative);
+    }
+
+    /**
+     * Registers a summary, with its own label names, as for
+     * registerMetric. The returned metric is for use with
+     * reportSummary.
+     */
+    protected Metric registerSummary(String key, String unit, HistogramBuckets quantiles, String... labels) {
+        Metric metric = new Metric(namespace, key, unit, 1.0);
+        metric.store = extraStore(labels);
+        metric.column = engine.registerSummary(metric.store, metric.name, unit, quantiles);
+        return metric;
+    }
+
+    private SeriesStore extraStore(String[] labels) {
+        List<String> key = Arrays.asList(labels);
+        SeriesStore metricStore = extraStores.get(key);
+        if (metricStore == null) {
+            metricStore = engine.createStore(labels);
+            extraStores.put(key, metricStore);
+        }
+        return metricStore;
+    }
+
+    /**
+     * Registers a histogram in the storage created by registerAll,
+     * returning its column for use with reportHistogram. The name
+     * is built as for addMetric, except that the key may be null.
+     */
+    protected int registerHistogram(String key, String unit, HistogramBuckets buckets) {
+        String name = namespace;
+        if (key != null) {
+            name += "_" + key;
+        }
+        if (unit != null) {
+            name += "_" + unit;
+        }
+        return engine.registerHistogram(store, name, unit, buckets);
+    }
+
+    /**
+     * Initialization: records every response processed from now
+     * on in a capture, under the given selector name.
+     */
+    void setCapture(StatsCapture capture, String selector) {
+        this.capture = capture;
+        this.captureSelector = selector;
     }
 
     /*
      * Collecting and reporting functions
      */
 
-    public void setWaiters(CountDownLatch cbwaiters) {
-        this.cbwaiters = cbwaiters;
+    /**
+     * Starts a new call, superseding any previous one. The returned
+     * callback must be used for the @Statistics call; it processes
+     * the response (unless the call is abandoned first) and counts
+     * down the waiters latch.
+     */
+    public ProcedureCallback startCall(CountDownLatch waiters) {
+        return startCall(waiters, null);
+    }
+
+    /**
+     * As startCall(waiters), except that if 'decoder' is not null,
+     * the response is processed there, rather than on the thread that
+     * delivers it (the VoltDB client's network thread), which is then
+     * free to deliver other responses.
+     */
+    public synchronized ProcedureCallback startCall(CountDownLatch waiters, Executor decoder) {
+        final long callId = ++currentCallId;
+        cbwaiters = waiters;
+        callOpen = true;
+        callProcessing = false;
+        callStartNanos = System.nanoTime();
+        lastCallSucceeded = false;
+        lastStatus = 0;
+        lastStatusString = "no response";
+        if (decoder == null) {
+            return response -> completeCall(callId, waiters, response, System.currentTimeMillis(), System.nanoTime());
+        }
+        return response -> {
+            long receivedAt = System.currentTimeMillis();
+            long receivedNanos = System.nanoTime();
+            decoder.execute(() -> completeCall(callId, waiters, response, receivedAt, receivedNanos));
+        };
+    }
+
+    /**
+     * Processes a recorded response as the response to a new call,
+     * received at the given time (msec), for replay.
+     */
+    void replayCall(ClientResponse response, long receivedAt) {
+        long callId;
+        synchronized (this) {
+            startCall(null);
+            callId = currentCallId;
+        }
+        completeCall(callId, null, response, receivedAt, System.nanoTime());
+    }
+
+    /**
+     * Gives up on the current call, without waiting for a response
+     * that is being processed; any response that arrives later will
+     * be ignored. Returns true if the call was still outstanding.
+     */
+    public synchronized boolean abandonCall() {
+        boolean outstanding = callOpen || callProcessing;
+        callOpen = false;
+        callProcessing = false;
+        return outstanding;
+    }
+
+    /**
+     * True if the most recent call completed and its result
+     * was processed without error.
+     */
+    public boolean lastCallSucceeded() {
+        return lastCallSucceeded;
+    }
+
+    /**
+     * Status of the response to the most recent call, or zero
+     * if there was no response.
+     */
+    public byte lastStatus() {
+        return lastStatus;
+    }
+
+    /**
+     * Reason for failure of the most recent call.
+     */
+    public String lastStatusString() {
+        return lastStatusString;
     }
 
+    /**
+     * Round-trip time of the most recent successful call, nanoseconds.
+     */
+    public long lastRoundTripNanos() {
+        return lastRoundTripNanos;
+    }
+
+    /**
+     * Rows in all tables of the most recent successful response.
+     */
+    public long lastRowCount() {
+        return lastRowCount;
+    }
+
+    /**
+     * Time taken to process the most recent successful response,
+     * nanoseconds.
+     */
+    public long lastProcessingNanos() {
+        return lastProcessingNanos;
+    }
+
+    /**
+     * Direct use as a ProcedureCallback: the response is taken
+     * to belong to the current call.
+     */
     @Override
     public void clientCallback(ClientResponse response) throws Exception {
+        long callId;
+        CountDownLatch waiters;
+        synchronized (this) {
+            callId = currentCallId;
+            waiters = cbwaiters;
+        }
+        completeCall(callId, waiters, response, System.currentTimeMillis(), System.nanoTime());
+    }
+
+    private void completeCall(long callId, CountDownLatch waiters, ClientResponse response,
+                              long receivedAt, long receivedNanos) {
         try {
-            if (response.getStatus() == ClientResponse.SUCCESS) {
+            long roundTrip;
+            synchronized (this) {
+                if (callId != currentCallId || !callOpen) {
+                    logger.debug("Discarding late response for namespace " + namespace);
+                    return;
+                }
+                callOpen = false;
+                lastStatus = response.getStatus();
+                lastStatusString = response.getStatusString();
+                if (response.getStatus() != ClientResponse.SUCCESS) {
+                    return;
+                }
+                callProcessing = true;
+                roundTrip = receivedNanos - callStartNanos;
+            }
+            try {
                 VoltTable tbls[] = response.getResults();
-                processResult(tbls);
+                long rows = 0;
+                long processed;
+                synchronized (processing) {
+                    if (capture != null) {
+                        capture.append(captureSelector, receivedAt, tbls);
+                    }
+                    for (VoltTable t : tbls) {
+                        rows += t.getRowCount();
+                    }
+                    long started = processingTime();
+                    helperNanos.set(0);
+                    beginCycle(receivedAt);
+                    processResult(tbls);
+                    processed = processingTime() - started + helperNanos.get();
+                }
+                synchronized (this) {
+                    if (callId == currentCallId && callProcessing) {
+                        callProcessing = false;
+                        lastProcessingNanos = processed;
+                        lastRoundTripNanos = roundTrip;
+                        lastRowCount = rows;
+                        lastCallSucceeded = true;
+                    }
+                }
+            } catch (Throwable ex) {
+                logger.error("Failed to process stats for namespace " + namespace + ": " + ex.getMessage());
+                synchronized (this) {
+                    if (callId == currentCallId && callProcessing) {
+                        callProcessing = false;
+                        lastStatusString = "processing failed: " + ex.getMessage();
+                    }
+                }
             }
-        } catch (Throwable ex) {
-            logger.error("Failed to process stats for namespace " + namespace + ": " + ex.getMessage());
         } finally {
-            cbwaiters.countDown();
+            if (waiters != null) {
+                waiters.countDown();
+            }
         }
     }
 
     public abstract void processResult(VoltTable[] tables);
 
-    protected void reportMetric(Metric metric, Number value, String... labelValues) {
-        engine.reportMetric(metric.name, value.longValue() * metric.multiplier, labelValues);
+    private static long processingTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime()
+                                                         : System.nanoTime();
+    }
+
+    /*
+     * Each processed response is an update cycle for our stores
+     */
+    private void beginCycle(long now) {
+        if (store != null) {
+            store.beginCycle(now);
+        }
+        for (SeriesStore extra : extraStores.values()) {
+            extra.beginCycle(now);
+        }
+    }
+
+    /**
+     * Called by the engine after a call has been successfully
+     * processed. Removes series that have not been reported for
+     * 'maxMissed' calls, returning the number removed.
+     */
+    public int endCycle(int maxMissed) {
+        synchronized (processing) {
+            int evicted = 0;
+            if (store != null) {
+                evicted += store.endCycle(maxMissed);
+            }
+            for (SeriesStore extra : extraStores.values()) {
+                evicted += extra.endCycle(maxMissed);
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * Reads a numeric column of the current row as a double, using the
+     * accessor for the column's VoltType, so that fractional values are
+     * preserved and nothing is boxed. SQL NULL reads as NaN.
+     */
+    enum ValueReader {
+        LONG {
+            @Override
+            double read(VoltTableRow row, int col) {
+                long value = row.getLong(col);
+                return row.wasNull() ? Double.NaN : value;
+            }
+        },
+        DOUBLE {
+            @Override
+            double read(VoltTableRow row, int col) {
+                double value = row.getDouble(col);
+                return row.wasNull() ? Double.NaN : value;
+            }
+        },
+        DECIMAL {
+            @Override
+            double read(VoltTableRow row, int col) {
+                BigDecimal value = row.getDecimalAsBigDecimal(col);
+                return value == null ? Double.NaN : value.doubleValue();
+            }
+        },
+        TIMESTAMP {
+            @Override
+            double read(VoltTableRow row, int col) {
+                long value = row.getTimestampAsLong(col); // microseconds
+                return row.wasNull() ? Double.NaN : value;
+            }
+        };
+
+        abstract double read(VoltTableRow row, int col);
+
+        /**
+         * Reader for a column type, or null if the type is not numeric.
+         */
+        static ValueReader forType(VoltType type) {
+            switch (type) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+                return LONG;
+            case FLOAT:
+                return DOUBLE;
+            case DECIMAL:
+                return DECIMAL;
+            case TIMESTAMP:
+                return TIMESTAMP;
+            default:
+                return null;
+            }
+        }
+    }
+
+    /*
+     * Row decoding. For each numeric metric registered with registerAll
+     * that is present in the current result table: the metric, its column
+     * index, and the reader for the column type. Rebuilt by compile for
+     * each result; the arrays are reused.
+     */
+    private Metric[] rowMetrics = new Metric[0];
+    private int[] rowColumns = new int[0];
+    private ValueReader[] rowReaders = new ValueReader[0];
+    private int rowMetricCount;
+
+    /**
+     * Resolves metric columns in a result table, for use by reportRow.
+     * Metrics whose columns are absent (an older server) are skipped.
+     */
+    protected void compile(VoltTable table) {
+        if (rowMetrics.length != metricMap.size()) {
+            rowMetrics = new Metric[metricMap.size()];
+            rowColumns = new int[metricMap.size()];
+            rowReaders = new ValueReader[metricMap.size()];
+        }
+        int n = 0;
+        for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
+            Metric metric = e.getValue();
+            int index = findColumn(table, e.getKey());
+            if (index < 0 || metric.store != store) {
+                continue;
+            }
+            ValueReader reader = ValueReader.forType(table.getColumnType(index));
+            if (reader == null) {
+                logger.debug("Ignoring non-numeric column " + e.getKey() + " for namespace " + namespace);
+                continue;
+            }
+            rowMetrics[n] = metric;
+            rowColumns[n] = index;
+            rowReaders[n] = reader;
+            n++;
+        }
+        rowMetricCount = n;
+    }
+
+    private static int findColumn(VoltTable table, String name) {
+        try {
+            return table.getColumnIndex(name);
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sets the value of one label for the current row.
+     */
+    protected void label(int index, String value) {
+        labelValues[index] = value;
+    }
+
+    protected void label(int index, long value) {
+        labelValues[index] = longLabel(value);
+    }
+
+    /**
+     * Series id for the current row's label values, in the storage
+     * created by registerAll.
+     */
+    protected int series() {
+        return store.series(labelValues);
+    }
+
+    /**
+     * Reports the values of all compiled metrics from the current
+     * row of the table, for the given series. Null values are not
+     * reported.
+     */
+    protected void reportRow(VoltTable table, int series) {
+        for (int i = 0; i < rowMetricCount; i++) {
+            double value = rowReaders[i].read(table, rowColumns[i]);
+            if (!Double.isNaN(value)) {
+                reportMetric(rowMetrics[i], series, value);
+            }
+        }
+    }
+
+    protected void reportMetric(Metric metric, int series, double value) {
+        engine.reportMetric(metric.store, metric.column, series, value * metric.multiplier);
+    }
+
+    /**
+     * Label values of one row, set by a RowLabeller.
+     */
+    protected static final class RowLabels {
+        final String[] values;
+
+        RowLabels(String[] values) {
+            this.values = values;
+        }
+
+        public void set(int index, String value) {
+            values[index] = value;
+        }
+
+        public void set(int index, long value) {
+            values[index] = longLabel(value);
+        }
+    }
+
+    /**
+     * Sets the label values for a row of a result table. May be
+     * called on several threads at once, for different rows.
+     */
+    @FunctionalInterface
+    protected interface RowLabeller {
+        void label(VoltTableRow row, RowLabels labels);
+    }
+
+    /*
+     * Tables with at least PARALLEL_ROWS rows are decoded in ranges of
+     * RANGE_ROWS rows, in parallel, if the engine has a decoder pool
+     * that can run more than one thread at a time.
+     */
+    static final int PARALLEL_ROWS = 8192;
+    static final int RANGE_ROWS = 2048;
+
+    /**
+     * Reports the values of all compiled metrics for every row of the
+     * table, with label values set by 'labeller', as if by label and
+     * reportRow for each row in turn.
+     *
+     * A large table is split into ranges of rows, which are decoded in
+     * parallel by the engine's decoder pool, each into its own buffers:
+     * label values (with their hash codes computed, since the strings
+     * cache them) and metric values. The ranges are then applied to the
+     * store in order, by this thread, holding the store's lock once for
+     * all of them; series lookup and update stay serial, and the result
+     * is as it would have been for serial decoding.
+     */
+    protected void reportRows(VoltTable table, RowLabeller labeller) {
+        int rows = table.getRowCount();
+        ForkJoinPool decoders = engine.getParallelDecoders();
+        if (decoders == null || rows < PARALLEL_ROWS) {
+            while (table.advanceRow()) {
+                labeller.label(table, rowLabels);
+                reportRow(table, series());
+            }
+            return;
+        }
+
+        // One pass to position a cursor at the start of each range
+        RowRange[] ranges = new RowRange[(rows + RANGE_ROWS - 1) / RANGE_ROWS];
+        VoltTableRow walker = table.cloneRow();
+        walker.resetRowPosition();
+        for (int i = 0; i < ranges.length; i++) {
+            walker.advanceToRow(i * RANGE_ROWS);
+            ranges[i] = new RowRange(walker.cloneRow(), Math.min(RANGE_ROWS, rows - i * RANGE_ROWS));
+        }
+        decoders.invoke(new DecodeRanges(ranges, 0, ranges.length, labeller, Thread.currentThread()));
+
+        int labelCount = labelValues.length;
+        synchronized (store) {
+            for (RowRange range : ranges) {
+                for (int r = 0; r < range.count; r++) {
+                    System.arraycopy(range.labels, r * labelCount, labelValues, 0, labelCount);
+                    int series = series();
+                    for (int i = 0, v = r * rowMetricCount; i < rowMetricCount; i++, v++) {
+                        if (!Double.isNaN(range.values[v])) {
+                            reportMetric(rowMetrics[i], series, range.values[v]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * A range of rows of a result table, starting at the row on
+     * which the cursor is positioned, and once decoded, the label
+     * values and metric values of each row.
+     */
+    private static final class RowRange {
+        final VoltTableRow start;
+        final int count;
+        String[] labels; // [row * labels + label]
+        double[] values; // [row * metrics + metric]
+
+        RowRange(VoltTableRow start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    /*
+     * Decodes ranges [lo, hi), splitting until one range each.
+     * Processing time on threads other than the caller's is
+     * added to helperNanos.
+     */
+    private final class DecodeRanges extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowRange[] ranges;
+        private final int lo, hi;
+        private final RowLabeller labeller;
+        private final Thread caller;
+
+        DecodeRanges(RowRange[] ranges, int lo, int hi, RowLabeller labeller, Thread caller) {
+            this.ranges = ranges;
+            this.lo = lo;
+            this.hi = hi;
+            this.labeller = labeller;
+            this.caller = caller;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new DecodeRanges(ranges, lo, mid, labeller, caller),
+                          new DecodeRanges(ranges, mid, hi, labeller, caller));
+                return;
+            }
+            long started = processingTime();
+            decode(ranges[lo]);
+            if (Thread.currentThread() != caller) {
+                helperNanos.addAndGet(processingTime() - started);
+            }
+        }
+
+        private void decode(RowRange range) {
+            int labelCount = labelValues.length;
+            RowLabels labels = new RowLabels(new String[labelCount]);
+            range.labels = new String[range.count * labelCount];
+            range.values = new double[range.count * rowMetricCount];
+            VoltTableRow row = range.start;
+            for (int r = 0; r < range.count; r++) {
+                if (r > 0) {
+                    row.advanceRow();
+                }
+                labeller.label(row, labels);
+                for (int i = 0, l = r * labelCount; i < labelCount; i++, l++) {
+                    String value = labels.values[i];
+                    if (value != null) {
+                        value.hashCode(); // cached in the string, for series lookup
+                    }
+                    range.labels[l] = value;
+                }
+                for (int i = 0, v = r * rowMetricCount; i < rowMetricCount; i++, v++) {
+                    range.values[v] = rowReaders[i].read(row, rowColumns[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * For histograms registered with registerHistogram: cumulative
+     * bucket counts, total count, and sum of observed values.
+     */
+    protected void reportHistogram(int column, int series, double[] cumulative, double count, double sum) {
+        engine.reportHistogram(store, column, series, cumulative, count, sum);
+    }
+
+    /**
+     * For summaries registered with registerSummary: the value
+     * at each quantile, count, and sum of observed values.
+     */
+    protected void reportSummary(Metric metric, double[] values, double count, double sum, String... labelValues) {
+        engine.reportSummary(metric.store, metric.column, metric.store.series(labelValues), values, count, sum);
+    }
+
+    /**
+     * For metrics registered individually with registerMetric
+     */
+    protected void reportMetric(Metric metric, double value, String... labelValues) {
+        reportMetric(metric, metric.store.series(labelValues), value);
+    }
+
+    /*
+     * Numeric label values (partition ids, site ids, etc.) are small,
+     * so their string forms are cached. The cache covers the MP
+     * partition id, 16383. Races are harmless.
+     */
+    private static final int LABEL_CACHE_SIZE = 16384;
+    private static final String[] labelCache = new String[LABEL_CACHE_SIZE];
+
+    private static String longLabel(long value) {
+        if (value < 0 || value >= LABEL_CACHE_SIZE) {
+            return String.valueOf(value);
+        }
+        String label = labelCache[(int) value];
+        if (label == null) {
+            label = String.valueOf(value);
+            labelCache[(int) value] = label;
+        }
+        return label;
     }
 }
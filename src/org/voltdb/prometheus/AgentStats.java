@@ -0,0 +1,213 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Agent metrics, per statistics selector:
+ *
+ *  voltdb_agent_selector_call_seconds (histogram)
+ *  voltdb_agent_selector_rows_total
+ *  voltdb_agent_selector_processing_seconds_total
+ *
+ * Labels:
+ *
+ *  selector
+ *
+ * Per metric family:
+ *
+ *  voltdb_agent_family_series
+ *
+ * Labels:
+ *
+ *  family
+ *
+ * Per exposition format:
+ *
+ *  voltdb_agent_render_seconds
+ *  voltdb_agent_render_bytes
+ *
+ * Labels:
+ *
+ *  format
+ *
+ * And for the agent's JVM:
+ *
+ *  voltdb_agent_heap_used_bytes
+ *  voltdb_agent_heap_committed_bytes
+ *  voltdb_agent_heap_max_bytes
+ *  voltdb_agent_gc_collections_total (label: gc)
+ *  voltdb_agent_gc_seconds_total (label: gc)
+ *
+ * The cost of collection to the agent itself, so that the agent can
+ * be sized, and a selector that makes collections slow can be found.
+ * Call time is the round trip of a successful @Statistics call, as
+ * seen by the agent; processing time is the CPU time spent turning the
+ * response into metrics. Series counts are of series with a value, as
+ * of the end of a collection. Render figures are those of the previous
+ * render in each format, since a render cannot include its own cost;
+ * rendering happens once per collection (and per filtered scrape).
+ * Series evictions are counted by the engine, in
+ * voltdb_agent_series_evicted_total.
+ *
+ * Heap and GC figures are read from the JVM's management beans at
+ * each collection. With several clusters, each engine reports the
+ * same JVM figures, distinguished only by the cluster label.
+ *
+ * These are held in SeriesStores, like the probe metrics, rather than
+ * in the engine's registry, since the registry's histograms cannot be
+ * rendered by our exposition writers. They are set in the stores
+ * directly, so as not to be counted as statistics collected from VoltDB.
+ */
+class AgentStats {
+
+    private static final double NANOSECONDS = 0.000_000_001;
+    private static final double MILLISECONDS = 0.001;
+
+    private final String[] m_labelValue = new String[1];
+
+    // Per selector
+    private final SeriesStore m_selectorStore;
+    private final int m_callColumn;
+    private final int m_rowsColumn;
+    private final int m_processingColumn;
+    private final HistogramBuckets m_buckets = HistogramBuckets.DEFAULT_LATENCY;
+    private final EnumMap<SupportedStatsSelectors, Calls> m_calls = new EnumMap<>(SupportedStatsSelectors.class);
+
+    private static class Calls {
+        final double[] counts; // cumulative
+        long count;
+        double sum; // seconds
+        long rows;
+        double processing; // seconds
+
+        Calls(int buckets) {
+            counts = new double[buckets];
+        }
+    }
+
+    // Per family
+    private final SeriesStore m_familyStore;
+    private final int m_seriesColumn;
+
+    // Per format
+    private final SeriesStore m_renderStore;
+    private final int m_renderTimeColumn;
+    private final int m_renderBytesColumn;
+
+    // JVM
+    private final SeriesStore m_heapStore;
+    private final int m_heapUsedColumn;
+    private final int m_heapCommittedColumn;
+    private final int m_heapMaxColumn;
+    private final int m_heapSeries;
+    private final SeriesStore m_gcStore;
+    private final int m_gcCountColumn;
+    private final int m_gcTimeColumn;
+
+    AgentStats(VoltDBPrometheusMetricEngine engine) {
+        engine.setHelp("voltdb_agent_selector_call_seconds", "Round-trip time of successful @Statistics calls for a selector");
+        engine.setHelp("voltdb_agent_selector_rows_total", "Rows received in successful @Statistics responses for a selector");
+        engine.setHelp("voltdb_agent_selector_processing_seconds_total", "CPU time spent processing @Statistics responses for a selector");
+        engine.setHelp("voltdb_agent_family_series", "Number of series exported in a metric family");
+        engine.setHelp("voltdb_agent_render_seconds", "Time taken by the previous render of all metrics in a format");
+        engine.setHelp("voltdb_agent_render_bytes", "Size of the previous render of all metrics in a format, uncompressed");
+        engine.setHelp("voltdb_agent_heap_used_bytes", "Heap memory used by the agent");
+        engine.setHelp("voltdb_agent_heap_committed_bytes", "Heap memory committed by the agent's JVM");
+        engine.setHelp("voltdb_agent_heap_max_bytes", "Maximum heap memory of the agent's JVM");
+        engine.setHelp("voltdb_agent_gc_collections_total", "Number of collections by a garbage collector of the agent's JVM");
+        engine.setHelp("voltdb_agent_gc_seconds_total", "Time spent in collections by a garbage collector of the agent's JVM");
+
+        m_selectorStore = engine.createStore("selector");
+        m_callColumn = engine.registerHistogram(m_selectorStore, "voltdb_agent_selector_call_seconds", "seconds", m_buckets);
+        m_rowsColumn = engine.registerCounter(m_selectorStore, "voltdb_agent_selector_rows_total", null);
+        m_processingColumn = engine.registerCounter(m_selectorStore, "voltdb_agent_selector_processing_seconds_total", "seconds");
+
+        m_familyStore = engine.createStore("family");
+        m_seriesColumn = engine.registerMetric(m_familyStore, "voltdb_agent_family_series", null, false);
+
+        m_renderStore = engine.createStore("format");
+        m_renderTimeColumn = engine.registerMetric(m_renderStore, "voltdb_agent_render_seconds", "seconds", false);
+        m_renderBytesColumn = engine.registerMetric(m_renderStore, "voltdb_agent_render_bytes", "bytes", false);
+
+        m_heapStore = engine.createStore();
+        m_heapUsedColumn = engine.registerMetric(m_heapStore, "voltdb_agent_heap_used_bytes", "bytes", false);
+        m_heapCommittedColumn = engine.registerMetric(m_heapStore, "voltdb_agent_heap_committed_bytes", "bytes", false);
+        m_heapMaxColumn = engine.registerMetric(m_heapStore, "voltdb_agent_heap_max_bytes", "bytes", false);
+        m_heapSeries = m_heapStore.series(new String[0]);
+        m_gcStore = engine.createStore("gc");
+        m_gcCountColumn = engine.registerCounter(m_gcStore, "voltdb_agent_gc_collections_total", null);
+        m_gcTimeColumn = engine.registerCounter(m_gcStore, "voltdb_agent_gc_seconds_total", "seconds");
+    }
+
+    /**
+     * Records the cost of a successful call for a selector.
+     */
+    public synchronized void recordCall(SupportedStatsSelectors selector, AbstractStatsProcedureCallback cb) {
+        Calls calls = m_calls.computeIfAbsent(selector, s -> new Calls(m_buckets.size()));
+        double seconds = cb.lastRoundTripNanos() * NANOSECONDS;
+        for (int i = m_buckets.size() - 1; i >= 0 && seconds <= m_buckets.bound(i); i--) {
+            calls.counts[i]++;
+        }
+        calls.count++;
+        calls.sum += seconds;
+        calls.rows += cb.lastRowCount();
+        calls.processing += cb.lastProcessingNanos() * NANOSECONDS;
+        m_labelValue[0] = selector.name();
+        int series = m_selectorStore.series(m_labelValue);
+        m_selectorStore.setHistogram(m_callColumn, series, calls.counts, calls.count, calls.sum);
+        m_selectorStore.set(m_rowsColumn, series, calls.rows);
+        m_selectorStore.set(m_processingColumn, series, calls.processing);
+    }
+
+    /**
+     * Records the cost of rendering in one format.
+     */
+    public synchronized void recordRender(ExpositionFormat format, long nanos, int bytes) {
+        m_labelValue[0] = format.name().toLowerCase();
+        int series = m_renderStore.series(m_labelValue);
+        m_renderStore.set(m_renderTimeColumn, series, nanos * NANOSECONDS);
+        m_renderStore.set(m_renderBytesColumn, series, bytes);
+    }
+
+    /**
+     * Copies current JVM figures, and then series counts of the
+     * given stores, to storage, for export.
+     */
+    public synchronized void report(List<SeriesStore> stores) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        m_heapStore.set(m_heapUsedColumn, m_heapSeries, heap.getUsed());
+        m_heapStore.set(m_heapCommittedColumn, m_heapSeries, heap.getCommitted());
+        m_heapStore.set(m_heapMaxColumn, m_heapSeries, heap.getMax() < 0 ? Double.NaN : heap.getMax());
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            m_labelValue[0] = gc.getName();
+            int series = m_gcStore.series(m_labelValue);
+            long count = gc.getCollectionCount();
+            long time = gc.getCollectionTime();
+            m_gcStore.set(m_gcCountColumn, series, count < 0 ? Double.NaN : count);
+            m_gcStore.set(m_gcTimeColumn, series, time < 0 ? Double.NaN : time * MILLISECONDS);
+        }
+
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (SeriesStore store : stores) {
+            store.countSeries(counts::put);
+        }
+        for (Map.Entry<String, Integer> ent : counts.entrySet()) {
+            m_labelValue[0] = ent.getKey();
+            m_familyStore.set(m_seriesColumn, m_familyStore.series(m_labelValue), ent.getValue());
+        }
+    }
+}
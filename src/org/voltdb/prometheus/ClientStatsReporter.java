@@ -0,0 +1,155 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.Map;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStats;
+import org.voltdb.client.ClientStatsContext;
+import org.voltdb.client.ClientStatusListenerExt;
+
+/**
+ * Agent client metrics, per connection:
+ *
+ *  voltdb_client_invocations_completed_total
+ *  voltdb_client_invocation_aborts_total
+ *  voltdb_client_invocation_errors_total
+ *  voltdb_client_invocation_timeouts_total
+ *  voltdb_client_sent_bytes_total
+ *  voltdb_client_received_bytes_total
+ *  voltdb_client_latency_seconds (summary)
+ *
+ * Labels:
+ *
+ *  hostname
+ *  port
+ *  connection
+ *
+ * And for the client as a whole:
+ *
+ *  voltdb_client_backpressure
+ *  voltdb_client_backpressure_events_total
+ *  voltdb_client_connections_lost_total
+ *
+ * These are the statistics that the agent's own VoltDB client keeps
+ * for the calls the agent makes (@Statistics, and probes if enabled),
+ * so that a slow cluster can be told apart from a slow or backpressured
+ * connection from the agent. Per-connection values are taken from a
+ * ClientStatsContext at each collection, and are counts since the
+ * client was created; a new client has new connection ids, and the
+ * series of connections that no longer exist are removed. The client
+ * reports backpressure and lost connections only to its status
+ * listener, which is this object, and not by connection.
+ */
+class ClientStatsReporter extends ClientStatusListenerExt {
+
+    private static final HistogramBuckets QUANTILES = new HistogramBuckets(0.5, 0.9, 0.99, 0.999);
+    private static final double MILLISECONDS = 0.001;
+
+    private final VoltDBPrometheusMetricEngine m_engine;
+
+    // Per-connection storage
+    private final SeriesStore m_store;
+    private final int m_completedColumn;
+    private final int m_abortsColumn;
+    private final int m_errorsColumn;
+    private final int m_timeoutsColumn;
+    private final int m_sentColumn;
+    private final int m_receivedColumn;
+    private final int m_latencyColumn;
+    private final String[] m_labelValues = new String[3];
+    private final double[] m_quantileValues = new double[QUANTILES.size()];
+
+    // Client-wide storage
+    private final SeriesStore m_clientStore;
+    private final int m_backpressureColumn;
+    private final int m_backpressureEventsColumn;
+    private final int m_connectionsLostColumn;
+    private final int m_clientSeries;
+
+    // Guarded by 'this'
+    private ClientStatsContext m_context;
+    private boolean m_backpressure;
+    private long m_backpressureEvents;
+    private long m_connectionsLost;
+
+    ClientStatsReporter(VoltDBPrometheusMetricEngine engine) {
+        m_engine = engine;
+        m_store = engine.createStore("hostname", "port", "connection");
+        m_completedColumn = engine.registerCounter(m_store, "voltdb_client_invocations_completed_total", null);
+        m_abortsColumn = engine.registerCounter(m_store, "voltdb_client_invocation_aborts_total", null);
+        m_errorsColumn = engine.registerCounter(m_store, "voltdb_client_invocation_errors_total", null);
+        m_timeoutsColumn = engine.registerCounter(m_store, "voltdb_client_invocation_timeouts_total", null);
+        m_sentColumn = engine.registerCounter(m_store, "voltdb_client_sent_bytes_total", "bytes");
+        m_receivedColumn = engine.registerCounter(m_store, "voltdb_client_received_bytes_total", "bytes");
+        m_latencyColumn = engine.registerSummary(m_store, "voltdb_client_latency_seconds", "seconds", QUANTILES);
+        m_clientStore = engine.createStore();
+        m_backpressureColumn = engine.registerMetric(m_clientStore, "voltdb_client_backpressure", null, false);
+        m_backpressureEventsColumn = engine.registerCounter(m_clientStore, "voltdb_client_backpressure_events_total", null);
+        m_connectionsLostColumn = engine.registerCounter(m_clientStore, "voltdb_client_connections_lost_total", null);
+        m_clientSeries = m_clientStore.series(new String[0]);
+    }
+
+    /**
+     * Sets the client whose statistics are reported,
+     * or null if there is none.
+     */
+    public synchronized void setClient(Client client) {
+        m_context = (client != null ? client.createStatsContext() : null);
+        m_backpressure = false;
+    }
+
+    @Override
+    public synchronized void backpressure(boolean status) {
+        if (status && !m_backpressure) {
+            m_backpressureEvents++;
+        }
+        m_backpressure = status;
+    }
+
+    @Override
+    public synchronized void connectionLost(String hostname, int port, int connectionsLeft, DisconnectCause cause) {
+        m_connectionsLost++;
+    }
+
+    /**
+     * Copies current statistics to storage, for export.
+     */
+    public synchronized void report() {
+        m_store.beginCycle(System.currentTimeMillis());
+        if (m_context != null) {
+            Map<Long, ClientStats> byConnection = m_context.fetch().getStatsByConnection();
+            for (ClientStats stats : byConnection.values()) {
+                reportConnection(stats);
+            }
+        }
+        m_store.endCycle(1);
+        m_engine.reportMetric(m_clientStore, m_backpressureColumn, m_clientSeries, m_backpressure ? 1 : 0);
+        m_engine.reportMetric(m_clientStore, m_backpressureEventsColumn, m_clientSeries, m_backpressureEvents);
+        m_engine.reportMetric(m_clientStore, m_connectionsLostColumn, m_clientSeries, m_connectionsLost);
+    }
+
+    private void reportConnection(ClientStats stats) {
+        m_labelValues[0] = stats.getHostname();
+        m_labelValues[1] = String.valueOf(stats.getPort());
+        m_labelValues[2] = String.valueOf(stats.getConnectionId());
+        int series = m_store.series(m_labelValues);
+        long completed = stats.getInvocationsCompleted();
+        m_engine.reportMetric(m_store, m_completedColumn, series, completed);
+        m_engine.reportMetric(m_store, m_abortsColumn, series, stats.getInvocationAborts());
+        m_engine.reportMetric(m_store, m_errorsColumn, series, stats.getInvocationErrors());
+        m_engine.reportMetric(m_store, m_timeoutsColumn, series, stats.getInvocationTimeouts());
+        m_engine.reportMetric(m_store, m_sentColumn, series, stats.getBytesWritten());
+        m_engine.reportMetric(m_store, m_receivedColumn, series, stats.getBytesRead());
+        for (int i = 0; i < QUANTILES.size(); i++) {
+            m_quantileValues[i] = (completed == 0 ? Double.NaN
+                                   : stats.kPercentileLatencyAsDouble(QUANTILES.bound(i)) * MILLISECONDS);
+        }
+        m_engine.reportSummary(m_store, m_latencyColumn, series, m_quantileValues, completed,
+                               stats.getAverageLatency() * completed * MILLISECONDS);
+    }
+}
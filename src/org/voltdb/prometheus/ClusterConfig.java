@@ -0,0 +1,74 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Validated settings for monitoring one VoltDB cluster. These come
+ * either from the agent command line (single cluster) or from one
+ * entry in the JSON configuration file (multiple clusters).
+ */
+class ClusterConfig {
+    String name; // null for single cluster from command line
+    String servers = "localhost";
+    int port;
+    String user = "";
+    String password = "";
+    boolean sslEnabled = false;
+    String sslConfigFile = null;
+    Set<SupportedStatsSelectors> statsSet;
+    Map<SupportedStatsSelectors, Long> pollPeriods = new EnumMap<>(SupportedStatsSelectors.class);
+    boolean delta = false;
+    boolean counters = false;
+    long pollInterval = 0; // msec, 0 means poll on each request
+    long selectorTimeout = VoltDBPrometheusMetricEngine.DEFAULT_SELECTOR_TIMEOUT; // msec
+    long collectionTimeout = VoltDBPrometheusMetricEngine.DEFAULT_COLLECTION_TIMEOUT; // msec
+    int evictAfter = VoltDBPrometheusMetricEngine.DEFAULT_EVICT_AFTER; // polls
+    HistogramBuckets latencyBuckets = HistogramBuckets.DEFAULT_LATENCY; // seconds
+    int probeRate = 0; // probes per second, 0 for no prober
+    String probeProcedure = "@Ping";
+    String[] probeParams = new String[0];
+    String captureFile = null; // for StatsCapture, null for none
+    int decodeThreads = VoltDBPrometheusMetricEngine.DEFAULT_DECODE_THREADS; // 0 for client thread
+
+    /**
+     * Creates and initializes the metrics engine and source for this
+     * cluster. Fails only if the capture file cannot be opened.
+     */
+    ClusterMetricsSource createSource() throws IOException {
+        VoltDBPrometheusMetricEngine engine =
+            new VoltDBPrometheusMetricEngine(servers, port, user, password, sslEnabled, sslConfigFile);
+        if (captureFile != null) {
+            engine.setCapture(StatsCapture.open(Paths.get(captureFile)));
+        }
+        engine.setClusterName(name);
+        engine.setIntervalMode(delta);
+        engine.setCounterMode(counters);
+        engine.setLatencyBuckets(latencyBuckets);
+        engine.setDecodeThreads(decodeThreads);
+        if (probeRate > 0) {
+            engine.setProbe(probeProcedure, probeParams, probeRate);
+        }
+        engine.setSupportedStats(statsSet);
+        engine.setPollPeriods(pollPeriods);
+        engine.setTimeouts(selectorTimeout, collectionTimeout);
+        engine.setEvictAfter(evictAfter);
+        return new ClusterMetricsSource(name, engine, pollInterval);
+    }
+
+    String describe() {
+        return String.format("%s%s%s metrics from VoltDB at %s port %d %s",
+                             statsSet, (delta ? " delta" : ""), (counters ? " counter" : ""),
+                             servers, port, sslEnabled ? "(SSL enabled)" : "");
+    }
+}
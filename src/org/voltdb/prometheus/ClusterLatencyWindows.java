@@ -0,0 +1,253 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.HdrHistogram_voltpatches.AbstractHistogram;
+import org.HdrHistogram_voltpatches.Histogram;
+import org.HdrHistogram_voltpatches.HistogramIterationValue;
+
+/**
+ * Cluster-wide latency over sliding windows, merged from the
+ * cumulative per-host latency histograms reported by VoltDB.
+ *
+ * Each poll is a call to beginPoll, then add for each host, then
+ * endPoll. The change in each host's histogram since its previous
+ * poll is merged into one interval histogram for the cluster. A host
+ * seen for the first time only establishes its baseline; a host with
+ * any bucket count lower than in its previous histogram has restarted
+ * (even if its total has since passed the previous total), and its
+ * whole histogram is new.
+ *
+ * Interval histograms are accumulated into a ring of time slots, a
+ * new slot being started when the current one is SLOT_MS old. Each
+ * window is a histogram holding the sum of the slots within it: the
+ * interval is added to every window, and a slot is subtracted from
+ * a window once its last update is older than the window. A window
+ * thus covers between its length and its length plus one slot. A
+ * poll costs one add and one subtract per host, plus one add per
+ * window and one subtract per expired slot, however many slots
+ * there are.
+ *
+ * Memory is bounded: the histograms are allocated once, with the
+ * range and precision of the first histogram reported by VoltDB,
+ * and reused, being reallocated only if a host reports values beyond
+ * that range; there are only enough slots to cover the longest
+ * window. The only other state is the latest histogram of each host.
+ *
+ * Values are in microseconds, as reported by VoltDB.
+ *
+ * Not thread-safe; used by the latency histogram callback only.
+ */
+class ClusterLatencyWindows {
+
+    static final String[] WINDOW_LABELS = { "10s", "1m", "5m" };
+    private static final long[] WINDOW_MS = { 10_000, 60_000, 300_000 };
+    private static final long SLOT_MS = 5_000;
+    private static final int SLOTS = (int) (WINDOW_MS[WINDOW_MS.length - 1] / SLOT_MS) + 2;
+    private static final double MICROSECONDS = 0.000_001;
+
+    private final Map<String, AbstractHistogram> m_previous = new HashMap<>();
+    private final Set<String> m_seen = new HashSet<>();
+    private Histogram m_interval; // null until first histogram is seen
+
+    // Ring of slots
+    private final Histogram[] m_slots = new Histogram[SLOTS];
+    private final long[] m_slotStart = new long[SLOTS];
+    private final long[] m_slotEnd = new long[SLOTS]; // last update
+    private int m_current = -1;
+
+    // Windows: sum of slots from oldest, 'included' slots in all
+    private final Histogram[] m_windows = new Histogram[WINDOW_MS.length];
+    private final int[] m_oldest = new int[WINDOW_MS.length];
+    private final int[] m_included = new int[WINDOW_MS.length];
+
+    // Cluster totals since the agent started
+    private long m_count;
+    private double m_sum;
+
+    public int getWindowCount() {
+        return WINDOW_MS.length;
+    }
+
+    public void beginPoll() {
+        if (m_interval != null) {
+            m_interval.reset();
+        }
+        m_seen.clear();
+    }
+
+    /**
+     * Adds the cumulative histogram reported by one host. The
+     * histogram is retained, and must not be modified.
+     */
+    public void add(String hostname, AbstractHistogram histogram) {
+        m_seen.add(hostname);
+        if (m_interval == null) {
+            allocate(histogram);
+        } else if (histogram.getMaxValue() > m_interval.getHighestTrackableValue()) {
+            widen(histogram);
+        }
+        AbstractHistogram previous = m_previous.put(hostname, histogram);
+        if (previous == null) {
+            return;
+        }
+        m_interval.add(histogram);
+        if (continues(histogram, previous)) {
+            m_interval.subtract(previous);
+        }
+    }
+
+    /*
+     * True if no bucket of 'histogram' has a lower count than the
+     * same bucket of 'previous', so that the difference is what the
+     * host recorded in between. The histograms of one host have the
+     * same range, but a histogram that does not cover a value of the
+     * previous one is taken to be new as well.
+     */
+    static boolean continues(AbstractHistogram histogram, AbstractHistogram previous) {
+        if (histogram.getTotalCount() < previous.getTotalCount()) {
+            return false;
+        }
+        try {
+            for (HistogramIterationValue value : previous.recordedValues()) {
+                if (histogram.getCountAtValue(value.getValueIteratedTo()) < value.getCountAtValueIteratedTo()) {
+                    return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a poll, at time 'now' (msec): the interval is added to
+     * the current slot and the windows, and expired slots removed
+     * from the windows. Hosts that did not report are forgotten.
+     */
+    public void endPoll(long now) {
+        m_previous.keySet().retainAll(m_seen);
+        if (m_interval == null) {
+            return;
+        }
+        if (m_current < 0 || now - m_slotStart[m_current] >= SLOT_MS) {
+            nextSlot(now);
+        }
+        m_slots[m_current].add(m_interval);
+        m_slotEnd[m_current] = now;
+        for (int w = 0; w < m_windows.length; w++) {
+            m_windows[w].add(m_interval);
+            while (m_included[w] > 1 && now - m_slotEnd[m_oldest[w]] >= WINDOW_MS[w]) {
+                expire(w);
+            }
+        }
+        long total = m_interval.getTotalCount();
+        if (total != 0) {
+            m_count += total;
+            m_sum += m_interval.getMean() * total * MICROSECONDS;
+        }
+    }
+
+    public boolean hasData() {
+        return m_current >= 0;
+    }
+
+    /**
+     * Count of latencies merged since the agent started
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Sum of latencies merged since the agent started, seconds
+     */
+    public double getSum() {
+        return m_sum;
+    }
+
+    /**
+     * Fills 'values' with the latency at each quantile over
+     * window 'w', in seconds; NaN if the window is empty.
+     */
+    public void quantiles(int w, HistogramBuckets quantiles, double[] values) {
+        Histogram window = m_windows[w];
+        boolean empty = (window == null || window.getTotalCount() == 0);
+        for (int i = 0; i < quantiles.size(); i++) {
+            values[i] = empty ? Double.NaN
+                              : window.getValueAtPercentile(quantiles.bound(i) * 100) * MICROSECONDS;
+        }
+    }
+
+    /*
+     * Starts a new slot, which every window then includes. The
+     * ring has enough slots that the one reused has expired from
+     * all windows, unless the clock has jumped; it is removed in
+     * any case.
+     */
+    private void nextSlot(long now) {
+        m_current = (m_current + 1) % SLOTS;
+        for (int w = 0; w < m_windows.length; w++) {
+            if (m_included[w] == SLOTS) {
+                expire(w);
+            }
+            m_included[w]++;
+        }
+        m_slots[m_current].reset();
+        m_slotStart[m_current] = now;
+    }
+
+    private void expire(int w) {
+        m_windows[w].subtract(m_slots[m_oldest[w]]);
+        m_oldest[w] = (m_oldest[w] + 1) % SLOTS;
+        m_included[w]--;
+    }
+
+    private void allocate(AbstractHistogram like) {
+        m_interval = newHistogram(like);
+        for (int i = 0; i < SLOTS; i++) {
+            m_slots[i] = newHistogram(like);
+        }
+        for (int w = 0; w < m_windows.length; w++) {
+            m_windows[w] = newHistogram(like);
+        }
+    }
+
+    /*
+     * Reallocates every histogram with a range that also covers
+     * 'wider', keeping its contents. Histograms of one host normally
+     * share a range, but a restarted host, or a host running another
+     * version, may report a wider one. The previous histograms of
+     * other hosts still fit, being within the old range.
+     */
+    private void widen(AbstractHistogram wider) {
+        long highest = Math.max(m_interval.getHighestTrackableValue(),
+                                Math.max(wider.getHighestTrackableValue(), wider.getMaxValue()));
+        m_interval = widened(m_interval, highest);
+        for (int i = 0; i < SLOTS; i++) {
+            m_slots[i] = widened(m_slots[i], highest);
+        }
+        for (int w = 0; w < m_windows.length; w++) {
+            m_windows[w] = widened(m_windows[w], highest);
+        }
+    }
+
+    private static Histogram widened(Histogram old, long highest) {
+        Histogram h = new Histogram(old.getLowestDiscernibleValue(), highest, old.getNumberOfSignificantValueDigits());
+        h.add(old);
+        return h;
+    }
+
+    private static Histogram newHistogram(AbstractHistogram like) {
+        return new Histogram(like.getLowestDiscernibleValue(), like.getHighestTrackableValue(),
+                             like.getNumberOfSignificantValueDigits());
+    }
+}
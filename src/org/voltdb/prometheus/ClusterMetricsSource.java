@@ -0,0 +1,193 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Source of metrics for one VoltDB cluster: an engine with its own
+ * VoltDB client, plus either a background scheduler or the state
+ * needed to collect on request. Each source is an independent
+ * failure domain; several may be served by one agent.
+ *
+ * When collecting on request, collection runs on a thread owned by
+ * this source, never on the requesting thread. Concurrent requests
+ * (say, from several Prometheus replicas) join the collection that
+ * is already in flight, and are all completed from its result.
+ *
+ * A request may ask for the metrics of only some selectors, in which
+ * case a collection on request polls just those. A collection or
+ * recent snapshot is shared by any request whose selectors it covers;
+ * other requests queue a collection of their own. In background mode,
+ * all selectors are always polled.
+ */
+public class ClusterMetricsSource {
+
+    /**
+     * Cluster name, as used in the 'cluster' label and in
+     * per-cluster URL paths. Null for the single-cluster agent.
+     */
+    private final String m_name;
+
+    /**
+     * Used to do the actual metric generation
+     */
+    private final VoltDBPrometheusMetricEngine m_engine;
+
+    /**
+     * Background collection, if enabled; null when collecting
+     * on request.
+     */
+    private final StatsCollectionScheduler m_scheduler;
+
+    /**
+     * The engine is not reentrant, so (a) we have at most one
+     * collection in flight, and (b) in order to not repeatedly incur
+     * long timeouts in connectivity failures, we just repeat the
+     * previous results for requests that arrive back-to-back.
+     * Guarded by 'this'.
+     */
+    final private static long MIN_GATHER_INTERVAL = 1500;
+    private long m_lastGatherEndTime;
+    private MetricsSnapshot m_lastSnapshot; // null if last gather failed
+    private CompletableFuture<MetricsSnapshot> m_inFlight; // most recently started
+    private Set<SupportedStatsSelectors> m_inFlightSelectors;
+    private ExecutorService m_executor;
+
+    /**
+     * A non-zero poll interval (msec) selects background collection.
+     */
+    public ClusterMetricsSource(String name, VoltDBPrometheusMetricEngine engine, long pollInterval) {
+        m_name = name;
+        m_engine = engine;
+        m_scheduler = (pollInterval > 0 ? new StatsCollectionScheduler(name, engine, pollInterval) : null);
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public synchronized void start() {
+        m_engine.startProbe();
+        if (m_scheduler != null) {
+            m_scheduler.start();
+        } else if (m_executor == null) {
+            m_executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "VoltDB statistics collector" + (m_name != null ? " " + m_name : ""));
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public synchronized void stop() {
+        if (m_scheduler != null) {
+            m_scheduler.stop();
+        }
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+        m_engine.stopProbe();
+        m_engine.disconnect();
+    }
+
+    /**
+     * Asks for metrics to be rendered in a given format from the
+     * next collection on; see VoltDBPrometheusMetricEngine.
+     */
+    public void requestFormat(ExpositionFormat format) {
+        m_engine.requestFormat(format);
+    }
+
+    /**
+     * Selectors polled for this cluster.
+     */
+    public Set<SupportedStatsSelectors> getSelectors() {
+        return m_engine.getSelectors();
+    }
+
+    /**
+     * The selector that provides a metric, or null if none does.
+     */
+    public SupportedStatsSelectors selectorOf(String metricName) {
+        return m_engine.selectorOf(metricName);
+    }
+
+    /**
+     * Returns the metrics of all selectors to be served for a request.
+     */
+    public CompletableFuture<MetricsSnapshot> getSnapshot() {
+        return getSnapshot(m_engine.getSelectors());
+    }
+
+    /**
+     * Returns the metrics to be served for a request that needs the
+     * given selectors: in background mode, the latest snapshot;
+     * otherwise the result of collecting now (subject to
+     * MIN_GATHER_INTERVAL). The future completes with null if
+     * nothing can be served.
+     */
+    public synchronized CompletableFuture<MetricsSnapshot> getSnapshot(Set<SupportedStatsSelectors> selectors) {
+        if (m_scheduler != null) {
+            return CompletableFuture.completedFuture(m_scheduler.getLatest());
+        }
+        if (m_inFlight != null && m_inFlightSelectors.containsAll(selectors)) {
+            return m_inFlight;
+        }
+        long now = System.currentTimeMillis();
+        if (now < m_lastGatherEndTime + MIN_GATHER_INTERVAL && now >= m_lastGatherEndTime
+                && (m_lastSnapshot == null || m_lastSnapshot.covers(selectors))) {
+            return CompletableFuture.completedFuture(m_lastSnapshot);
+        }
+        if (m_executor == null) {
+            return CompletableFuture.completedFuture(null); // stopped
+        }
+        // Runs after any collection already in flight
+        CompletableFuture<MetricsSnapshot> future = new CompletableFuture<>();
+        m_executor.execute(() -> {
+            try {
+                future.complete(collect(selectors, future));
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        m_inFlight = future;
+        m_inFlightSelectors = selectors;
+        return future;
+    }
+
+    /*
+     * Runs on our collector thread
+     */
+    private MetricsSnapshot collect(Set<SupportedStatsSelectors> selectors, CompletableFuture<MetricsSnapshot> future) {
+        MetricsSnapshot snapshot = null;
+        try {
+            long start = System.currentTimeMillis();
+            synchronized (m_engine) {
+                if (m_engine.gatherMetrics(selectors)) {
+                    long end = System.currentTimeMillis();
+                    snapshot = new MetricsSnapshot(m_name, m_engine.render(selectors), selectors, end, end - start);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                m_lastSnapshot = snapshot;
+                m_lastGatherEndTime = System.currentTimeMillis();
+                if (m_inFlight == future) {
+                    m_inFlight = null;
+                    m_inFlightSelectors = null;
+                }
+            }
+        }
+        return snapshot;
+    }
+}
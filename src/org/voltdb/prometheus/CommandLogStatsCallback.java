@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -53,11 +51,10 @@ public class CommandLogStatsCallback extends AbstractStatsProcedureCallback impl
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+        });
     }
 }
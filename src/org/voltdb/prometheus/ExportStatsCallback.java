@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -51,7 +49,7 @@ public class ExportStatsCallback extends AbstractStatsProcedureCallback implemen
     public ExportStatsCallback(VoltDBPrometheusMetricEngine engine) {
         super(engine, "voltdb_export");
 
-        addMetric(Export.TUPLE_COUNT, "total_queued_tuples_count");
+        addMetric(Export.TUPLE_COUNT, "total_queued_tuples_count").cumulative();
         addMetric(Export.TUPLE_PENDING, "pending_tuples_count");
         addMetric(Export.LAST_QUEUED_TIMESTAMP, "last_queued_timestamp");
         addMetric(Export.LAST_ACKED_TIMESTAMP, "last_acked_timestamp");
@@ -65,22 +63,16 @@ public class ExportStatsCallback extends AbstractStatsProcedureCallback implemen
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String partitionid = String.valueOf(table.getLong(Export.PARTITION_ID.name()));
-            String source = table.getString(Export.SOURCE.name());
-            String target = table.getString(Export.TARGET.name());
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                String col = e.getKey();
-                Metric m = e.getValue();
-                if (col.equalsIgnoreCase(Export.LAST_QUEUED_TIMESTAMP.name())
-                        || col.equalsIgnoreCase(Export.LAST_ACKED_TIMESTAMP.name())) {
-                    reportMetric(m, table.getTimestampAsLong(col), hostname, partitionid, source, target);
-                } else {
-                    reportMetric(m, table.getLong(col), hostname, partitionid, source, target);
-                }
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int partitionIdCol = table.getColumnIndex(Export.PARTITION_ID.name());
+        int sourceCol = table.getColumnIndex(Export.SOURCE.name());
+        int targetCol = table.getColumnIndex(Export.TARGET.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(partitionIdCol));
+            labels.set(2, row.getString(sourceCol));
+            labels.set(3, row.getString(targetCol));
+        });
     }
 }
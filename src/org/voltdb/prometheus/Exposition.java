@@ -0,0 +1,194 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Metrics rendered in one of the exposition formats, ready to be
+ * written to any number of scrapes. Besides the bytes, we keep an
+ * index giving, for each metric family, where its HELP and TYPE
+ * lines (or protobuf equivalent) start, where its samples start,
+ * and where it ends; this allows the same family from several
+ * clusters to be merged, as the formats require, by copying byte
+ * ranges. In the protobuf format, each family is preceded by its
+ * length, which is recomputed when merging.
+ *
+ * A gzip-compressed copy of the bytes is made at most once, and then
+ * served to every scrape that accepts gzip. Separately compressed
+ * expositions can be sent one after another: a gzip stream may consist
+ * of several members.
+ *
+ * Instances are built by ExpositionWriter, and are immutable.
+ */
+public class Exposition {
+
+    private static final Map<ExpositionFormat,Exposition> TRAILERS = new EnumMap<>(ExpositionFormat.class);
+    static {
+        for (ExpositionFormat format : ExpositionFormat.values()) {
+            byte[] data = (format == ExpositionFormat.OPENMETRICS ? "# EOF\n".getBytes(StandardCharsets.US_ASCII) : new byte[0]);
+            TRAILERS.put(format, new Exposition(format, data, new String[0], new int[0], new int[0], new int[0]));
+        }
+    }
+
+    private final ExpositionFormat m_format;
+    private final byte[] m_data;
+    private final String[] m_names;
+    private final int[] m_headerStart;
+    private final int[] m_sampleStart;
+    private final int[] m_end;
+    private volatile byte[] m_gzipped;
+
+    Exposition(ExpositionFormat format, byte[] data, String[] names, int[] headerStart, int[] sampleStart, int[] end) {
+        m_format = format;
+        m_data = data;
+        m_names = names;
+        m_headerStart = headerStart;
+        m_sampleStart = sampleStart;
+        m_end = end;
+    }
+
+    /**
+     * What must follow the last exposition in a response:
+     * '# EOF' for OpenMetrics, nothing otherwise.
+     */
+    public static Exposition trailer(ExpositionFormat format) {
+        return TRAILERS.get(format);
+    }
+
+    public ExpositionFormat getFormat() {
+        return m_format;
+    }
+
+    public int size() {
+        return m_data.length;
+    }
+
+    public int getFamilyCount() {
+        return m_names.length;
+    }
+
+    public String getFamilyName(int family) {
+        return m_names[family];
+    }
+
+    /**
+     * Writes all families.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(m_data);
+    }
+
+    /**
+     * Writes all families, gzip-compressed, as a complete gzip member.
+     */
+    public void writeGzippedTo(OutputStream out) throws IOException {
+        if (m_data.length != 0) {
+            out.write(gzipped());
+        }
+    }
+
+    /**
+     * The compressed bytes, compressed on first use.
+     */
+    public byte[] gzipped() {
+        byte[] gz = m_gzipped;
+        if (gz == null) {
+            synchronized (this) {
+                gz = m_gzipped;
+                if (gz == null) {
+                    m_gzipped = gz = gzip(m_data);
+                }
+            }
+        }
+        return gz;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes, 8192)) {
+            gz.write(data);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // not possible in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the families from several expositions, which must
+     * be of the same format. Families of the same name are written
+     * as one, with the header taken from the first exposition in
+     * which the family appears.
+     */
+    public static void writeMerged(List<Exposition> parts, OutputStream out) throws IOException {
+        writeMerged(parts, name -> true, out);
+    }
+
+    /**
+     * As writeMerged, but writes only the families whose names
+     * are accepted by 'include'.
+     */
+    public static void writeMerged(List<Exposition> parts, Predicate<String> include, OutputStream out) throws IOException {
+        Map<String, List<Range>> byName = new LinkedHashMap<>();
+        for (Exposition part : parts) {
+            for (int i = 0; i < part.m_names.length; i++) {
+                if (include.test(part.m_names[i])) {
+                    byName.computeIfAbsent(part.m_names[i], k -> new ArrayList<>()).add(new Range(part, i));
+                }
+            }
+        }
+        for (List<Range> ranges : byName.values()) {
+            Range first = ranges.get(0);
+            if (first.part.m_format == ExpositionFormat.PROTOBUF) {
+                int len = first.part.m_sampleStart[first.family] - first.part.m_headerStart[first.family];
+                for (Range range : ranges) {
+                    len += range.part.m_end[range.family] - range.part.m_sampleStart[range.family];
+                }
+                writeVarint(len, out);
+            }
+            first.part.writeHeader(first.family, out);
+            for (Range range : ranges) {
+                range.part.writeSamples(range.family, out);
+            }
+        }
+    }
+
+    private static void writeVarint(int v, OutputStream out) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private void writeHeader(int family, OutputStream out) throws IOException {
+        out.write(m_data, m_headerStart[family], m_sampleStart[family] - m_headerStart[family]);
+    }
+
+    private void writeSamples(int family, OutputStream out) throws IOException {
+        out.write(m_data, m_sampleStart[family], m_end[family] - m_sampleStart[family]);
+    }
+
+    private static class Range {
+        final Exposition part;
+        final int family;
+
+        Range(Exposition part, int family) {
+            this.part = part;
+            this.family = family;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.Set;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Exposition formats we can serve, and content negotiation
+ * between them based on the HTTP Accept header.
+ */
+public enum ExpositionFormat {
+    TEXT        (TextFormat.CONTENT_TYPE_004),
+    OPENMETRICS ("application/openmetrics-text; version=1.0.0; charset=utf-8"),
+    PROTOBUF    ("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited"),
+    ;
+
+    private final String m_contentType;
+
+    ExpositionFormat(String contentType) {
+        m_contentType = contentType;
+    }
+
+    public String getContentType() {
+        return m_contentType;
+    }
+
+    /**
+     * Chooses the format to serve, given the Accept header of the
+     * request, from those that are available. This is the acceptable
+     * format with the highest quality value, earliest in the header
+     * on a tie; if no available format is acceptable, we serve text
+     * anyway, as we always have.
+     */
+    public static ExpositionFormat negotiate(String accept, Set<ExpositionFormat> available) {
+        ExpositionFormat best = TEXT;
+        double bestQuality = -1;
+        if (accept == null) {
+            return best;
+        }
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String mediaType = parts[0].trim().toLowerCase();
+            String version = null, proto = null, encoding = null;
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String[] param = parts[i].trim().split("=", 2);
+                if (param.length != 2) {
+                    continue;
+                }
+                String name = param[0].trim().toLowerCase();
+                String value = param[1].trim();
+                if (name.equals("q")) {
+                    try {
+                        quality = Double.parseDouble(value);
+                    } catch (NumberFormatException ex) {
+                        quality = 0;
+                    }
+                } else if (name.equals("version")) {
+                    version = value;
+                } else if (name.equals("proto")) {
+                    proto = value;
+                } else if (name.equals("encoding")) {
+                    encoding = value;
+                }
+            }
+            ExpositionFormat format = match(mediaType, version, proto, encoding);
+            if (format != null && available.contains(format) && quality > 0 && quality > bestQuality) {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static ExpositionFormat match(String mediaType, String version, String proto, String encoding) {
+        switch (mediaType) {
+        case "application/vnd.google.protobuf":
+            if ("io.prometheus.client.MetricFamily".equals(proto) && "delimited".equals(encoding)) {
+                return PROTOBUF;
+            }
+            return null;
+        case "application/openmetrics-text":
+            if (version == null || version.equals("1.0.0") || version.equals("0.0.1")) {
+                return OPENMETRICS;
+            }
+            return null;
+        case "text/plain":
+            if (version == null || version.equals("0.0.4")) {
+                return TEXT;
+            }
+            return null;
+        case "text/*":
+        case "*/*":
+            return TEXT;
+        default:
+            return null;
+        }
+    }
+}
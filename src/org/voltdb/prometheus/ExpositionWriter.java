@@ -0,0 +1,248 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Renders metrics in one of the exposition formats directly into a
+ * byte buffer, producing an Exposition. Subclasses implement the
+ * formats; create one with ExpositionWriter.create.
+ *
+ * Metric families are written with startFamily, then value (or
+ * histogram, or summary) for each series, then endFamily. Label sets
+ * are rendered once into a separate buffer (beginLabelSet, label,
+ * endLabelSet) and referred to by index, so that the labels of a
+ * series are encoded once however many metrics it has.
+ *
+ * The writer's buffers are kept for reuse, so a writer that is used
+ * for every collection soon stops allocating, apart from the final
+ * copy made by finish. Not thread-safe.
+ */
+public abstract class ExpositionWriter {
+
+    private static final int DEFAULT_SIZE = 64 * 1024;
+
+    private final ExpositionFormat m_format;
+    protected final OutputBuffer m_out;
+
+    // Family index
+    private final List<String> m_names = new ArrayList<>();
+    protected int[] m_familyStart = new int[64];
+    protected int[] m_headerStart = new int[64];
+    protected int[] m_sampleStart = new int[64];
+    protected int[] m_end = new int[64];
+
+    // Rendered label sets
+    protected final OutputBuffer m_labels;
+    private int[] m_labelOffsets = new int[65]; // start of each set, plus end
+    private int m_labelSetCount;
+    private boolean m_labelSetEmpty;
+
+    public static ExpositionWriter create(ExpositionFormat format) {
+        return create(format, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size initial buffer size, bytes
+     */
+    public static ExpositionWriter create(ExpositionFormat format, int size) {
+        switch (format) {
+        case PROTOBUF:
+            return new ProtobufExpositionWriter(size);
+        default:
+            return new TextExpositionWriter(format, size);
+        }
+    }
+
+    protected ExpositionWriter(ExpositionFormat format, int size) {
+        m_format = format;
+        m_out = new OutputBuffer(size);
+        m_labels = new OutputBuffer(size);
+    }
+
+    public ExpositionFormat getFormat() {
+        return m_format;
+    }
+
+    /**
+     * Discards all content.
+     */
+    public void reset() {
+        m_out.length = 0;
+        m_names.clear();
+        clearLabelSets();
+    }
+
+    /**
+     * Returns an immutable copy of the content, and resets the writer.
+     */
+    public Exposition finish() {
+        int n = m_names.size();
+        Exposition exp = new Exposition(m_format,
+                                        Arrays.copyOf(m_out.bytes, m_out.length),
+                                        m_names.toArray(new String[n]),
+                                        Arrays.copyOf(m_headerStart, n),
+                                        Arrays.copyOf(m_sampleStart, n),
+                                        Arrays.copyOf(m_end, n));
+        reset();
+        return exp;
+    }
+
+    /*
+     * Families
+     */
+
+    /**
+     * Starts a metric family. The unit, if not null, is reported
+     * in formats that support it.
+     */
+    public void startFamily(String name, Type type, String help, String unit) {
+        int n = m_names.size();
+        if (n == m_end.length) {
+            m_familyStart = Arrays.copyOf(m_familyStart, n * 2);
+            m_headerStart = Arrays.copyOf(m_headerStart, n * 2);
+            m_sampleStart = Arrays.copyOf(m_sampleStart, n * 2);
+            m_end = Arrays.copyOf(m_end, n * 2);
+        }
+        m_names.add(name);
+        m_familyStart[n] = m_out.length;
+        writeHeader(n, name, type, help, unit);
+        m_sampleStart[n] = m_out.length;
+    }
+
+    public void endFamily() {
+        int n = m_names.size() - 1;
+        m_end[n] = m_out.length;
+        finishFamily(n);
+    }
+
+    /**
+     * Writes the value of the current family for one series, with a
+     * label set previously rendered by endLabelSet, or with no labels
+     * if labelSet is negative.
+     */
+    public abstract void value(int labelSet, double value);
+
+    /**
+     * Writes a histogram of the current family for one series, given
+     * the cumulative count for each bucket, the total count (which is
+     * that of the +Inf bucket) and the sum of observed values.
+     */
+    public abstract void histogram(int labelSet, HistogramBuckets buckets, double[] cumulative,
+                                   double count, double sum);
+
+    /**
+     * Writes a summary of the current family for one series, given
+     * the value at each quantile, the count and the sum of observed
+     * values.
+     */
+    public abstract void summary(int labelSet, HistogramBuckets quantiles, double[] values,
+                                 double count, double sum);
+
+    /**
+     * Writes a family of gauges or counters obtained from a Prometheus
+     * Collector, with optional constant labels prefixed to each sample.
+     */
+    public void family(MetricFamilySamples family, String[] constNames, String[] constValues) {
+        startFamily(family.name, family.type, family.help, null);
+        for (Sample sample : family.samples) {
+            clearLabelSets();
+            beginLabelSet();
+            for (int i = 0; i < constNames.length; i++) {
+                label(constNames[i], constValues[i]);
+            }
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                label(sample.labelNames.get(i), sample.labelValues.get(i));
+            }
+            value(endLabelSet(), sample.value);
+        }
+        clearLabelSets();
+        endFamily();
+    }
+
+    /**
+     * Writes the HELP/TYPE (or equivalent) part of family 'n',
+     * setting m_headerStart[n].
+     */
+    protected abstract void writeHeader(int n, String name, Type type, String help, String unit);
+
+    /**
+     * Called when family 'n' is complete; may adjust its index entries.
+     */
+    protected void finishFamily(int n) {
+    }
+
+    /*
+     * Label sets
+     */
+
+    public void clearLabelSets() {
+        m_labels.length = 0;
+        m_labelSetCount = 0;
+        m_labelOffsets[0] = 0;
+    }
+
+    public void beginLabelSet() {
+        m_labelSetEmpty = true;
+    }
+
+    public void label(String name, String value) {
+        writeLabel(m_labelSetEmpty, name, value == null ? "" : value);
+        m_labelSetEmpty = false;
+    }
+
+    /**
+     * Completes a label set, returning its index for use with value.
+     */
+    public int endLabelSet() {
+        if (!m_labelSetEmpty) {
+            closeLabelSet();
+        }
+        int index = m_labelSetCount++;
+        if (m_labelSetCount == m_labelOffsets.length) {
+            m_labelOffsets = Arrays.copyOf(m_labelOffsets, m_labelOffsets.length * 2);
+        }
+        m_labelOffsets[m_labelSetCount] = m_labels.length;
+        return index;
+    }
+
+    /**
+     * Appends one label to m_labels.
+     */
+    protected abstract void writeLabel(boolean first, String name, String value);
+
+    /**
+     * Completes a non-empty label set in m_labels.
+     */
+    protected void closeLabelSet() {
+    }
+
+    protected int labelSetLength(int labelSet) {
+        return labelSet < 0 ? 0 : m_labelOffsets[labelSet + 1] - m_labelOffsets[labelSet];
+    }
+
+    protected void writeLabelSet(int labelSet) {
+        writeLabelSet(labelSet, 0);
+    }
+
+    /**
+     * Writes a label set less its last 'trim' bytes; nothing if the
+     * label set is empty.
+     */
+    protected void writeLabelSet(int labelSet, int trim) {
+        int len = labelSetLength(labelSet);
+        if (len != 0) {
+            m_out.write(m_labels.bytes, m_labelOffsets[labelSet], len - trim);
+        }
+    }
+}
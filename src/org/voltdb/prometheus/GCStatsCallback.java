@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -39,9 +37,9 @@ public class GCStatsCallback extends AbstractStatsProcedureCallback implements P
     public GCStatsCallback(VoltDBPrometheusMetricEngine engine) {
         super(engine, "voltdb_gc");
 
-        addMetric(GC.NEWGEN_GC_COUNT, "newgen_gc_count");
+        addMetric(GC.NEWGEN_GC_COUNT, "newgen_gc_count").cumulative();
         addMetric(GC.NEWGEN_AVG_GC_TIME, "newgen_avg_gc_time", "seconds", 0.001); // stats in milliseconds
-        addMetric(GC.OLDGEN_GC_COUNT, "oldgen_gc_count");
+        addMetric(GC.OLDGEN_GC_COUNT, "oldgen_gc_count").cumulative();
         addMetric(GC.OLDGEN_AVG_GC_TIME, "oldgen_avg_gc_time", "seconds", 0.001); // stats in milliseconds
 
         registerAll("hostname");
@@ -50,11 +48,10 @@ public class GCStatsCallback extends AbstractStatsProcedureCallback implements P
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+        });
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Upper bounds of the buckets of a Prometheus histogram, in strictly
+ * increasing order, excluding the implicit +Inf bucket. The bounds
+ * are also held formatted for use as 'le' label values; the format
+ * is that of the Go client, "0.005" or "1" rather than "5.0E-3" or
+ * "1.0", so that series are named the same whoever produces them.
+ *
+ * The same representation serves for the quantiles of a summary,
+ * whose 'quantile' labels are formatted likewise.
+ */
+public final class HistogramBuckets {
+
+    /**
+     * Default latency buckets, in seconds, from 100 usec to 10 sec
+     */
+    public static final HistogramBuckets DEFAULT_LATENCY =
+        new HistogramBuckets(0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+                             0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10);
+
+    private final double[] m_bounds;
+    private final String[] m_labels;
+
+    public HistogramBuckets(double... bounds) {
+        if (bounds.length == 0) {
+            throw new IllegalArgumentException("no bucket bounds");
+        }
+        for (int i = 0; i < bounds.length; i++) {
+            if (Double.isNaN(bounds[i]) || Double.isInfinite(bounds[i])) {
+                throw new IllegalArgumentException("invalid bucket bound " + bounds[i]);
+            }
+            if (i > 0 && bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("bucket bounds must be in increasing order");
+            }
+        }
+        m_bounds = bounds.clone();
+        m_labels = new String[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            m_labels[i] = format(bounds[i]);
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of bounds, as given on the
+     * command line.
+     *
+     * @throws IllegalArgumentException if the list is not valid
+     */
+    public static HistogramBuckets parse(String list) {
+        String[] parts = list.split(",");
+        double[] bounds = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                bounds[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("invalid bucket bound '" + parts[i].trim() + "'");
+            }
+        }
+        return new HistogramBuckets(bounds);
+    }
+
+    public int size() {
+        return m_bounds.length;
+    }
+
+    public double bound(int i) {
+        return m_bounds[i];
+    }
+
+    public String label(int i) {
+        return m_labels[i];
+    }
+
+    private static String format(double d) {
+        return new BigDecimal(Double.toString(d)).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", m_labels);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof HistogramBuckets && Arrays.equals(m_bounds, ((HistogramBuckets) other).m_bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(m_bounds);
+    }
+}
@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -41,10 +39,10 @@ public class IOStatsCallback extends AbstractStatsProcedureCallback implements P
     public IOStatsCallback(VoltDBPrometheusMetricEngine engine) {
         super(engine, "voltdb_iostats");
 
-        addMetric(IoStats.BYTES_READ, "received", "bytes");
-        addMetric(IoStats.MESSAGES_READ, "received_messages");
-        addMetric(IoStats.BYTES_WRITTEN, "sent", "bytes");
-        addMetric(IoStats.MESSAGES_WRITTEN, "sent_messages");
+        addMetric(IoStats.BYTES_READ, "received", "bytes").cumulative();
+        addMetric(IoStats.MESSAGES_READ, "received_messages").cumulative();
+        addMetric(IoStats.BYTES_WRITTEN, "sent", "bytes").cumulative();
+        addMetric(IoStats.MESSAGES_WRITTEN, "sent_messages").cumulative();
 
         registerAll("hostname", "cnxhostname");
     }
@@ -52,12 +50,12 @@ public class IOStatsCallback extends AbstractStatsProcedureCallback implements P
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String cnxhostname = table.getString(IoStats.CONNECTION_HOSTNAME.name());
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, cnxhostname);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int cnxHostnameCol = table.getColumnIndex(IoStats.CONNECTION_HOSTNAME.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getString(cnxHostnameCol));
+        });
     }
 }
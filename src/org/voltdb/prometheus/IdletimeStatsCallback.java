@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -50,7 +48,7 @@ public class IdletimeStatsCallback extends AbstractStatsProcedureCallback implem
     public IdletimeStatsCallback(VoltDBPrometheusMetricEngine engine) {
         super(engine, "voltdb_idletime");
 
-        addMetric(Idletime.COUNT, "queue_empty_count");
+        addMetric(Idletime.COUNT, "queue_empty_count").cumulative();
         addMetric(Idletime.PERCENT, "idle_ratio");
         addMetric(Idletime.AVG, "avg_wait_time", "seconds", 0.000001); // stats in microseconds
         addMetric(Idletime.MIN, "min_wait_time", "seconds", 0.000001); // stats in microseconds
@@ -63,19 +61,12 @@ public class IdletimeStatsCallback extends AbstractStatsProcedureCallback implem
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String siteid = String.valueOf(table.getLong(SiteStats.SITE_ID.name()));
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                String col = e.getKey();
-                Metric m = e.getValue();
-                if (col.equalsIgnoreCase(Idletime.PERCENT.name())) {
-                    reportMetric(m, table.getDouble(col), hostname, siteid);
-                } else {
-                    reportMetric(m, table.getLong(col), hostname, siteid);
-                }
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int siteIdCol = table.getColumnIndex(SiteStats.SITE_ID.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(siteIdCol));
+        });
     }
 }
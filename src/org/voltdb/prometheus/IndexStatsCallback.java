@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -51,17 +49,18 @@ public class IndexStatsCallback extends AbstractStatsProcedureCallback implement
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String partitionid = String.valueOf(table.getLong(Index.PARTITION_ID.name()));
-            String indexname = table.getString(Index.INDEX_NAME.name());
-            String tablename = table.getString(Index.TABLE_NAME.name());
-            String indextype = table.getString(Index.INDEX_TYPE.name());
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()),
-                        hostname, partitionid, indexname, tablename, indextype);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int partitionIdCol = table.getColumnIndex(Index.PARTITION_ID.name());
+        int indexNameCol = table.getColumnIndex(Index.INDEX_NAME.name());
+        int tableNameCol = table.getColumnIndex(Index.TABLE_NAME.name());
+        int indexTypeCol = table.getColumnIndex(Index.INDEX_TYPE.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(partitionIdCol));
+            labels.set(2, row.getString(indexNameCol));
+            labels.set(3, row.getString(tableNameCol));
+            labels.set(4, row.getString(indexTypeCol));
+        });
     }
 }
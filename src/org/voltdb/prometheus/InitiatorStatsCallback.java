@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -46,12 +44,12 @@ public class InitiatorStatsCallback extends AbstractStatsProcedureCallback imple
     public InitiatorStatsCallback(VoltDBPrometheusMetricEngine engine) {
         super(engine, "voltdb_initiator");
 
-        addMetric(Initiator.INVOCATIONS, "invocations");
+        addMetric(Initiator.INVOCATIONS, "invocations").cumulative();
         addMetric(Initiator.AVG_EXECUTION_TIME, "execution_time", "seconds", 0.001); //stats in milliseconds
         addMetric(Initiator.MIN_EXECUTION_TIME, "min_execution_time", "seconds", 0.001); //stats in milliseconds
         addMetric(Initiator.MAX_EXECUTION_TIME, "max_execution_time", "seconds", 0.001); //stats in milliseconds
-        addMetric(Initiator.ABORTS, "aborts");
-        addMetric(Initiator.FAILURES, "failures");
+        addMetric(Initiator.ABORTS, "aborts").cumulative();
+        addMetric(Initiator.FAILURES, "failures").cumulative();
 
         registerAll("hostname", "cnxhostname", "procname");
     }
@@ -59,13 +57,14 @@ public class InitiatorStatsCallback extends AbstractStatsProcedureCallback imple
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String cnxhostname = table.getString(Initiator.CONNECTION_HOSTNAME.name());
-            String procname = table.getString(Initiator.PROCEDURE_NAME.name());
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, cnxhostname, procname);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int cnxHostnameCol = table.getColumnIndex(Initiator.CONNECTION_HOSTNAME.name());
+        int procNameCol = table.getColumnIndex(Initiator.PROCEDURE_NAME.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getString(cnxHostnameCol));
+            labels.set(2, row.getString(procNameCol));
+        });
     }
 }
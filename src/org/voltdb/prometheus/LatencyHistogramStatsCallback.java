@@ -0,0 +1,144 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.HdrHistogram_voltpatches.AbstractHistogram;
+import org.HdrHistogram_voltpatches.Histogram;
+import org.HdrHistogram_voltpatches.HistogramIterationValue;
+import org.voltcore.utils.CompressionStrategy;
+import org.voltdb.StatsSource.StatsCommon;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ProcedureCallback;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Latency histogram metrics:
+ *
+ *  voltdb_latency_histogram_seconds (histogram)
+ *
+ * Labels:
+ *
+ *  hostname
+ *
+ * Cluster metrics:
+ *
+ *  voltdb_latency_histogram_cluster_seconds (summary)
+ *
+ * Labels:
+ *
+ *  window (10s, 1m, 5m)
+ *
+ * VoltDB reports, for each host, the latency of all transactions
+ * since the host started, as an HdrHistogram of microseconds,
+ * Snappy-compressed. We decode it and count the recorded values into
+ * the configured buckets (see --latencybuckets). Unlike the fixed
+ * percentiles of the LATENCY selector, the result can be aggregated
+ * across hosts and over time with histogram_quantile.
+ *
+ * The per-host histograms are also merged into cluster latency over
+ * sliding windows (see ClusterLatencyWindows), exported with true
+ * cluster quantiles, which cannot be derived from per-host
+ * percentiles. The quantiles are over the window; the count and sum
+ * are of all latencies merged since the agent started.
+ *
+ * HdrHistogram values are only known to within the precision of the
+ * histogram; a value is counted in the bucket that holds the highest
+ * value equivalent to it, and the sum is computed from the mean.
+ */
+public class LatencyHistogramStatsCallback extends AbstractStatsProcedureCallback implements ProcedureCallback {
+
+    private static final String HISTOGRAM_COLUMN = "HISTOGRAM";
+    private static final double MICROSECONDS = 0.000_001;
+    private static final HistogramBuckets CLUSTER_QUANTILES =
+        new HistogramBuckets(0.5, 0.9, 0.99, 0.999, 0.9999, 0.99999);
+
+    /**
+     * Decompression as done by VoltDB for the histogram column
+     */
+    private static final CompressionStrategy SNAPPY = new CompressionStrategy() {
+        @Override
+        public byte[] compress(byte[] data) throws IOException {
+            return Snappy.compress(data);
+        }
+        @Override
+        public byte[] uncompress(byte[] data) throws IOException {
+            return Snappy.uncompress(data);
+        }
+    };
+
+    private final HistogramBuckets buckets;
+    private final int column;
+    private final double[] counts; // reused for each row
+    private final Metric clusterMetric;
+    private final ClusterLatencyWindows clusterWindows = new ClusterLatencyWindows();
+    private final double[] clusterValues = new double[CLUSTER_QUANTILES.size()];
+
+    public LatencyHistogramStatsCallback(VoltDBPrometheusMetricEngine engine) {
+        super(engine, "voltdb_latency_histogram");
+
+        buckets = engine.getLatencyBuckets();
+        counts = new double[buckets.size()];
+        registerAll("hostname");
+        column = registerHistogram(null, "seconds", buckets);
+        clusterMetric = registerSummary("cluster", "seconds", CLUSTER_QUANTILES, "window");
+    }
+
+    @Override
+    public void processResult(VoltTable[] tables) {
+        VoltTable table = tables[0];
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int histogramCol = table.getColumnIndex(HISTOGRAM_COLUMN);
+        clusterWindows.beginPoll();
+        while (table.advanceRow()) {
+            byte[] compressed = table.getVarbinary(histogramCol);
+            if (table.wasNull() || compressed.length == 0) {
+                continue;
+            }
+            Histogram histogram = AbstractHistogram.fromCompressedBytes(compressed, SNAPPY);
+            String hostname = table.getString(hostnameCol);
+            long total = histogram.getTotalCount();
+            fillBuckets(histogram, buckets, counts);
+            label(0, hostname);
+            reportHistogram(column, series(), counts, total,
+                            total == 0 ? 0 : histogram.getMean() * total * MICROSECONDS);
+            clusterWindows.add(hostname, histogram);
+        }
+        clusterWindows.endPoll(System.currentTimeMillis());
+        if (clusterWindows.hasData()) {
+            for (int w = 0; w < clusterWindows.getWindowCount(); w++) {
+                clusterWindows.quantiles(w, CLUSTER_QUANTILES, clusterValues);
+                reportSummary(clusterMetric, clusterValues, clusterWindows.getCount(), clusterWindows.getSum(),
+                              ClusterLatencyWindows.WINDOW_LABELS[w]);
+            }
+        }
+    }
+
+    /*
+     * Cumulative count for each bucket, from a histogram of
+     * microseconds; values beyond the last bound are counted
+     * only in the total.
+     */
+    static void fillBuckets(AbstractHistogram histogram, HistogramBuckets buckets, double[] counts) {
+        Arrays.fill(counts, 0);
+        int bucket = 0;
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            double seconds = value.getValueIteratedTo() * MICROSECONDS;
+            while (bucket < counts.length && seconds > buckets.bound(bucket)) {
+                bucket++;
+            }
+            if (bucket == counts.length) {
+                break;
+            }
+            counts[bucket] += value.getCountAtValueIteratedTo();
+        }
+        for (int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram_voltpatches.Histogram;
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Probe metrics:
+ *
+ *  voltdb_probe_latency_seconds (histogram)
+ *  voltdb_probe_failures_total (counter)
+ *
+ * Labels:
+ *
+ *  procedure
+ *
+ * Measures latency as seen by a client: calls a procedure (@Ping by
+ * default, or some cheap read-only procedure) at a fixed rate through
+ * the engine's VoltDB client, and records the round-trip time of each
+ * call. Unlike the server's own statistics, this includes the network
+ * and queueing in the client library.
+ *
+ * Calls are asynchronous; the probe thread only sends. Latency is
+ * measured from the time at which a call was due to be sent, not
+ * the time it was actually sent, so that a stall that delays sending
+ * (say, client backpressure) is charged to the calls it delayed rather
+ * than silently omitted: the coordinated-omission correction.
+ *
+ * Probes are only sent while the engine has a connected client. A
+ * call that cannot be sent, or that fails, counts as a failure; its
+ * latency is recorded if there was a response.
+ *
+ * Latencies are recorded in microseconds in an HdrHistogram, and
+ * counted into the histogram buckets when reported, once per
+ * collection. Latencies beyond a minute are recorded as a minute.
+ */
+class LatencyProber {
+
+    private static final VoltLogger logger = new VoltLogger("CONSOLE");
+
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final double MICROSECONDS = 0.000_001;
+
+    private final VoltDBPrometheusMetricEngine m_engine;
+    private final String m_procedure;
+    private final Object[] m_params;
+    private final long m_intervalNanos;
+
+    // Storage, and the one series of each metric
+    private final SeriesStore m_store;
+    private final int m_latencyColumn;
+    private final int m_failuresColumn;
+    private final int m_series;
+    private final HistogramBuckets m_buckets;
+    private final double[] m_counts;
+
+    // Guarded by 'this'
+    private final Histogram m_histogram = new Histogram(HIGHEST_MICROS, 2);
+    private double m_sum; // seconds
+    private long m_failures;
+
+    private ScheduledExecutorService m_executor;
+    private long m_start; // nanoTime at which first probe was due
+    private long m_sent; // probes due so far; probe thread only
+
+    /**
+     * @param rate probes per second
+     */
+    LatencyProber(VoltDBPrometheusMetricEngine engine, String procedure, String[] params, int rate) {
+        m_engine = engine;
+        m_procedure = procedure;
+        m_params = params.clone();
+        m_intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        m_buckets = engine.getLatencyBuckets();
+        m_counts = new double[m_buckets.size()];
+        m_store = engine.createStore("procedure");
+        m_latencyColumn = engine.registerHistogram(m_store, "voltdb_probe_latency_seconds", "seconds", m_buckets);
+        m_failuresColumn = engine.registerCounter(m_store, "voltdb_probe_failures_total", null);
+        m_series = m_store.series(new String[] { procedure });
+    }
+
+    public synchronized void start() {
+        if (m_executor == null) {
+            m_executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "VoltDB latency probe");
+                t.setDaemon(true);
+                return t;
+            });
+            m_start = System.nanoTime() + m_intervalNanos;
+            m_sent = 0;
+            m_executor.scheduleAtFixedRate(this::probe, m_intervalNanos, m_intervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+    }
+
+    /*
+     * Runs at a fixed rate on the probe thread. A run that is late
+     * (because the previous one blocked) is followed by others in
+     * quick succession, each due at its own time.
+     */
+    private void probe() {
+        final long due = m_start + m_sent++ * m_intervalNanos;
+        Client client = m_engine.getClient();
+        if (client == null) {
+            return;
+        }
+        try {
+            boolean queued = client.callProcedure(response -> complete(due, response), m_procedure, m_params);
+            if (!queued) {
+                recordFailure();
+            }
+        } catch (Exception ex) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to call probe procedure " + m_procedure + ": " + ex.getMessage());
+            }
+            recordFailure();
+        }
+    }
+
+    private synchronized void complete(long due, ClientResponse response) {
+        long micros = Math.max(0, (System.nanoTime() - due) / 1000);
+        micros = Math.min(micros, HIGHEST_MICROS);
+        m_histogram.recordValue(micros);
+        m_sum += micros * MICROSECONDS;
+        if (response.getStatus() != ClientResponse.SUCCESS) {
+            m_failures++;
+        }
+    }
+
+    private synchronized void recordFailure() {
+        m_failures++;
+    }
+
+    /**
+     * Copies the current latency histogram and failure count
+     * to storage, for export.
+     */
+    public synchronized void report() {
+        long total = m_histogram.getTotalCount();
+        LatencyHistogramStatsCallback.fillBuckets(m_histogram, m_buckets, m_counts);
+        m_engine.reportHistogram(m_store, m_latencyColumn, m_series, m_counts, total, m_sum);
+        m_engine.reportMetric(m_store, m_failuresColumn, m_series, m_failures);
+    }
+}
@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -50,13 +48,14 @@ public class LiveClientsStatsCallback extends AbstractStatsProcedureCallback imp
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String cnxhostname = table.getString(LiveClients.CLIENT_HOSTNAME.name());
-            String admin = String.valueOf(table.getLong(LiveClients.ADMIN.name()));
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, cnxhostname, admin);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int cnxHostnameCol = table.getColumnIndex(LiveClients.CLIENT_HOSTNAME.name());
+        int adminCol = table.getColumnIndex(LiveClients.ADMIN.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getString(cnxHostnameCol));
+            labels.set(2, row.getLong(adminCol));
+        });
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Immutable result of one complete collection pass. Snapshots
+ * are produced by the StatsCollectionScheduler and served as-is
+ * to Prometheus, so that a scrape never waits on VoltDB.
+ *
+ * The VoltDB metrics are held already rendered (see Exposition),
+ * in each format that was wanted at collection time, so serving
+ * a scrape is little more than copying bytes. A snapshot produced
+ * for a filtered scrape may hold the metrics of only some selectors.
+ *
+ * Besides the VoltDB metrics, a snapshot reports its own age
+ * (computed at the time it is served) and the time taken by the
+ * collection that produced it:
+ *
+ *  voltdb_agent_snapshot_age_seconds
+ *  voltdb_agent_snapshot_timestamp_seconds
+ *  voltdb_agent_collection_duration_seconds
+ *
+ * Labels:
+ *
+ *  cluster (only when serving more than one cluster)
+ */
+public class MetricsSnapshot {
+
+    private static final String AGE_METRIC = "voltdb_agent_snapshot_age_seconds";
+    private static final String TIMESTAMP_METRIC = "voltdb_agent_snapshot_timestamp_seconds";
+    private static final String DURATION_METRIC = "voltdb_agent_collection_duration_seconds";
+
+    private final String m_clusterName; // may be null
+    private final Map<ExpositionFormat, Exposition> m_expositions;
+    private final Set<SupportedStatsSelectors> m_selectors;
+    private final long m_collectedAt; // wall clock, msec, end of collection
+    private final long m_durationMs;
+
+    public MetricsSnapshot(String clusterName, Map<ExpositionFormat, Exposition> expositions,
+                           Set<SupportedStatsSelectors> selectors, long collectedAt, long durationMs) {
+        m_clusterName = clusterName;
+        m_expositions = expositions;
+        m_selectors = selectors;
+        m_collectedAt = collectedAt;
+        m_durationMs = durationMs;
+    }
+
+    public long getCollectedAt() {
+        return m_collectedAt;
+    }
+
+    public long getDurationMs() {
+        return m_durationMs;
+    }
+
+    /**
+     * True if the snapshot holds the metrics of all the given selectors.
+     */
+    public boolean covers(Set<SupportedStatsSelectors> selectors) {
+        return m_selectors.containsAll(selectors);
+    }
+
+    /**
+     * Formats in which the snapshot is available.
+     */
+    public Set<ExpositionFormat> getFormats() {
+        return m_expositions.keySet();
+    }
+
+    /**
+     * The VoltDB metrics in this snapshot, in the given format,
+     * or null if not rendered in that format.
+     */
+    public Exposition getExposition(ExpositionFormat format) {
+        return m_expositions.get(format);
+    }
+
+    /**
+     * The agent's own snapshot metrics as of time 'now'.
+     */
+    public Exposition agentExposition(long now, ExpositionFormat format) {
+        ExpositionWriter out = ExpositionWriter.create(format, 256);
+        int labels = -1;
+        if (m_clusterName != null) {
+            out.beginLabelSet();
+            out.label("cluster", m_clusterName);
+            labels = out.endLabelSet();
+        }
+        gauge(out, labels, AGE_METRIC, "Time since the served snapshot was collected",
+              Math.max(0, now - m_collectedAt) / 1000.0);
+        gauge(out, labels, TIMESTAMP_METRIC, "Time at which the served snapshot was collected",
+              m_collectedAt / 1000.0);
+        gauge(out, labels, DURATION_METRIC, "Time taken by the collection that produced the served snapshot",
+              m_durationMs / 1000.0);
+        return out.finish();
+    }
+
+    private static void gauge(ExpositionWriter out, int labels, String name, String help, double value) {
+        out.startFamily(name, Type.GAUGE, help, "seconds");
+        out.value(labels, value);
+        out.endFamily();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte array, with the output functions needed by
+ * the exposition writers, both text and protobuf.
+ */
+final class OutputBuffer {
+    byte[] bytes;
+    int length;
+
+    OutputBuffer(int size) {
+        bytes = new byte[size];
+    }
+
+    void ensure(int n) {
+        if (length + n > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+        }
+    }
+
+    void write(byte[] src, int start, int len) {
+        ensure(len);
+        System.arraycopy(src, start, bytes, length, len);
+        length += len;
+    }
+
+    void writeByte(int b) {
+        ensure(1);
+        bytes[length++] = (byte) b;
+    }
+
+    void writeAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            bytes[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    /*
+     * Text output
+     */
+
+    /**
+     * Writes a string as UTF-8, with a fast path for ASCII
+     */
+    void writeString(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                write(utf8, 0, utf8.length);
+                return;
+            }
+            bytes[length++] = (byte) c;
+        }
+    }
+
+    /**
+     * Escaping as for the Prometheus text formats: backslash and
+     * newline, and optionally double-quote.
+     */
+    void writeEscaped(String s, boolean quote) {
+        int n = s.length();
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            String esc;
+            if (c == '\\') {
+                esc = "\\\\";
+            } else if (c == '\n') {
+                esc = "\\n";
+            } else if (c == '"' && quote) {
+                esc = "\\\"";
+            } else {
+                continue;
+            }
+            writeString(s.substring(start, i));
+            writeAscii(esc);
+            start = i + 1;
+        }
+        writeString(start == 0 ? s : s.substring(start));
+    }
+
+    /**
+     * Formats a double as Go does, which is what Prometheus expects
+     */
+    void writeDouble(double d) {
+        if (d == Double.POSITIVE_INFINITY) {
+            writeAscii("+Inf");
+        } else if (d == Double.NEGATIVE_INFINITY) {
+            writeAscii("-Inf");
+        } else if (Double.isNaN(d)) {
+            writeAscii("NaN");
+        } else {
+            writeAscii(Double.toString(d));
+        }
+    }
+
+    /*
+     * Protobuf output
+     */
+
+    static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static int utf8Length(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) >= 0x80) {
+                return s.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return n;
+    }
+
+    void writeVarint(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        bytes[length++] = (byte) v;
+    }
+
+    /**
+     * Writes a varint into already-written space at 'pos'
+     */
+    void putVarint(int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            bytes[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        bytes[pos] = (byte) v;
+    }
+
+    void writeFixed64(long v) {
+        ensure(8);
+        for (int i = 0; i < 8; i++) {
+            bytes[length++] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    void writeTag(int field, int wireType) {
+        writeByte((field << 3) | wireType);
+    }
+
+    void writeDoubleField(int field, double d) {
+        writeTag(field, 1);
+        writeFixed64(Double.doubleToRawLongBits(d));
+    }
+
+    void writeVarintField(int field, long v) {
+        writeTag(field, 0);
+        writeVarint(v);
+    }
+
+    void writeStringField(int field, String s) {
+        writeTag(field, 2);
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) >= 0x80) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(utf8.length);
+                write(utf8, 0, utf8.length);
+                return;
+            }
+        }
+        writeVarint(n);
+        writeAscii(s);
+    }
+}
@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -60,7 +58,7 @@ public class ProcedureStatsCallback extends AbstractStatsProcedureCallback imple
     public ProcedureStatsCallback(VoltDBPrometheusMetricEngine engine) {
         super(engine, "voltdb_procedure");
 
-        addMetric(ProcedureColumns.INVOCATIONS, "invocations");
+        addMetric(ProcedureColumns.INVOCATIONS, "invocations").cumulative();
         addMetric(ProcedureColumns.MIN_EXECUTION_TIME, "min_execution_time", "seconds", 0.000_000_001);
         addMetric(ProcedureColumns.MAX_EXECUTION_TIME, "max_execution_time", "seconds", 0.000_000_001); // stats in nanoseconds
         addMetric(ProcedureColumns.AVG_EXECUTION_TIME, "avg_execution_time", "seconds", 0.000_000_001); // stats in nanoseconds
@@ -70,8 +68,8 @@ public class ProcedureStatsCallback extends AbstractStatsProcedureCallback imple
         addMetric(ProcedureColumns.MIN_PARAMETER_SET_SIZE, "min_parameter_size", "bytes");
         addMetric(ProcedureColumns.MAX_PARAMETER_SET_SIZE, "max_parameter_size", "bytes");
         addMetric(ProcedureColumns.AVG_PARAMETER_SET_SIZE, "avg_parameter_size", "bytes");
-        addMetric(ProcedureColumns.ABORTS, "aborts");
-        addMetric(ProcedureColumns.FAILURES, "failures");
+        addMetric(ProcedureColumns.ABORTS, "aborts").cumulative();
+        addMetric(ProcedureColumns.FAILURES, "failures").cumulative();
 
         registerAll("hostname", "partitionid", "procedure");
     }
@@ -79,14 +77,14 @@ public class ProcedureStatsCallback extends AbstractStatsProcedureCallback imple
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String partitionid = String.valueOf(table.getLong(ProcedureColumns.PARTITION_ID.name()));
-            String procedure = table.getString(ProcedureColumns.PROCEDURE.name());
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, partitionid, procedure);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int partitionIdCol = table.getColumnIndex(ProcedureColumns.PARTITION_ID.name());
+        int procedureCol = table.getColumnIndex(ProcedureColumns.PROCEDURE.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(partitionIdCol));
+            labels.set(2, row.getString(procedureCol));
+        });
     }
 }
@@ -6,25 +6,52 @@
 package org.voltdb.prometheus;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
 
-import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.MetricsServlet;
-import io.prometheus.client.exporter.common.TextFormat;
 
 /**
  * Servlet that collects metrics and makes them available to Prometheus.
  * The servlet is created from mainline agent code, after parsing command
- * arguments and doing other initialization. It in turn creates an
- * instance of the VoltDBPrometheusMetricEngine, which does most of
- * the actual work of metrics collection.
+ * arguments and doing other initialization. It serves metrics from one
+ * or more ClusterMetricsSource objects, each of which owns an instance
+ * of the VoltDBPrometheusMetricEngine that does most of the actual work
+ * of metrics collection for one VoltDB cluster.
+ *
+ * Collection either happens inline, on each request from Prometheus,
+ * or in the background on a fixed period (see StatsCollectionScheduler),
+ * in which case requests are served from the latest snapshot.
+ *
+ * Requests are handled asynchronously (Servlet 3.1): no container
+ * thread waits while VoltDB is being polled. The response is written
+ * on a container thread once every cluster's snapshot is available.
+ *
+ * With more than one cluster, /metrics serves all clusters, and
+ * /metrics/<cluster> serves just the named cluster. Each metric
+ * carries a 'cluster' label.
+ *
+ * The name[] and selector query parameters limit a scrape to some
+ * metrics; see ScrapeFilter.
  *
  * The base MetricsServlet class is defined by the Prometheus client
  * library.
@@ -32,73 +59,248 @@ import io.prometheus.client.exporter.common.TextFormat;
 public class PrometheusServlet extends MetricsServlet {
 
     /**
-     * Used to do the actual metric generation
+     * Metrics sources, keyed by cluster name
      */
-    final private VoltDBPrometheusMetricEngine m_engine;
+    final private Map<String, ClusterMetricsSource> m_sources = new LinkedHashMap<>();
 
     /**
-     * The engine is not reentrant, so (a) we serialize requests, and
-     * (b) in order to not repeatedly incur long timeouts in connectivity
-     * failures, we just repeat the previous results for requests that
-     * arrive back-to-back.
+     * Limit on how long an asynchronous request may wait for
+     * collection to complete, msec.
      */
-    final private static long MIN_GATHER_INTERVAL = 1500;
-    private long m_lastGatherEndTime;
-    private boolean m_lastGatherSucceeded;
+    final private static long ASYNC_TIMEOUT = 60_000;
 
-    /**
-     * Constructor: the main task here is to create the
-     * VoltDB metrics engine.
-     */
-    public PrometheusServlet(String serverList, int port, String user, String password,
-                             Set<SupportedStatsSelectors> statsSet, boolean interval,
-                             boolean sslEnabled, String sslConfig) {
-        m_engine = new VoltDBPrometheusMetricEngine(serverList, port, user, password, sslEnabled, sslConfig);
-        m_engine.setSupportedStats(statsSet);
-        m_engine.setIntervalMode(interval);
+    public PrometheusServlet(List<ClusterMetricsSource> sources) {
+        for (ClusterMetricsSource source : sources) {
+            m_sources.put(source.getName(), source);
+        }
     }
 
     /**
-     * Responds to a 'GET' request from Prometheus. Collects stats
-     * from VoltDB (via the generic metrics agent) and calls us
-     * back at reportMetric (below) to record current gauge values.
+     * Responds to a 'GET' request from Prometheus. Obtains a snapshot
+     * of stats from each cluster being served (see ClusterMetricsSource)
+     * and writes them out in the format negotiated from the Accept
+     * header: Prometheus text, OpenMetrics text, or protobuf.
      *
      * @see io.prometheus.client.exporter.MetricsServlet#doGet(javax.servlet.http.HttpServletRequest,
      *      javax.servlet.http.HttpServletResponse)
      */
     @Override  // MetricsServlet
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        synchronized (m_engine) {
-            long now = System.currentTimeMillis();
-            if (now >= m_lastGatherEndTime + MIN_GATHER_INTERVAL || now < m_lastGatherEndTime) {
-                m_lastGatherSucceeded = m_engine.gatherMetrics();
-                m_lastGatherEndTime = System.currentTimeMillis();
+        List<ClusterMetricsSource> sources = selectSources(req.getPathInfo());
+        if (sources == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        ScrapeFilter filter;
+        try {
+            filter = ScrapeFilter.parse(req.getParameterValues("name[]"), req.getParameterValues("selector"));
+        } catch (IllegalArgumentException ex) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
+        // Each source collects on its own thread, so all clusters are
+        // polled in parallel; requests arriving during a collection
+        // share its result. Formats other than text are rendered
+        // only once someone has asked for them.
+        ExpositionFormat wanted = ExpositionFormat.negotiate(req.getHeader("Accept"),
+                                                             EnumSet.allOf(ExpositionFormat.class));
+        List<CompletableFuture<MetricsSnapshot>> futures = new ArrayList<>(sources.size());
+        for (ClusterMetricsSource source : sources) {
+            source.requestFormat(wanted);
+            futures.add(source.getSnapshot(filter.selectorsFor(source)));
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        if (all.isDone()) {
+            respond(req, resp, futures, familyFilter(sources, filter)); // typically background mode
+            return;
+        }
+
+        final AsyncContext ctx = req.startAsync();
+        final AtomicBoolean responded = new AtomicBoolean();
+        ctx.setTimeout(ASYNC_TIMEOUT);
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    ((HttpServletResponse) event.getAsyncContext().getResponse())
+                        .setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    event.getAsyncContext().complete();
+                }
             }
-            if (m_lastGatherSucceeded) {
-                continueGet(req, resp);
-            } else {
-                resp.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            @Override public void onComplete(AsyncEvent event) { }
+            @Override public void onError(AsyncEvent event) { }
+            @Override public void onStartAsync(AsyncEvent event) { }
+        });
+        all.whenComplete((v, t) -> {
+            if (!responded.get()) {
+                ctx.start(() -> {
+                    if (responded.compareAndSet(false, true)) {
+                        try {
+                            respond(req, resp, futures, familyFilter(sources, filter));
+                        } catch (Exception ex) {
+                            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        } finally {
+                            ctx.complete();
+                        }
+                    }
+                });
             }
+        });
+    }
+
+    /*
+     * Family names to be served for a filter; null for all. Metric
+     * names are common to all sources, but a source knows only the
+     * names of the selectors it polls.
+     */
+    private static Predicate<String> familyFilter(List<ClusterMetricsSource> sources, ScrapeFilter filter) {
+        if (!filter.isFiltered()) {
+            return null;
         }
+        return name -> {
+            SupportedStatsSelectors selector = null;
+            for (ClusterMetricsSource source : sources) {
+                if ((selector = source.selectorOf(name)) != null) {
+                    break;
+                }
+            }
+            return filter.includes(name, selector);
+        };
     }
 
     /*
-     * Variant of MetricsServlet.doGet() that does not rely on the request
-     * to determine the list of metric names, but instead supplies all
-     * known names. Possibly temporary until I figure out how it is
-     * supposed to work.
+     * Writes the response once all futures are complete. Failed
+     * sources do not contribute to the result.
      */
-    private void continueGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    private void respond(HttpServletRequest req, HttpServletResponse resp,
+                         List<CompletableFuture<MetricsSnapshot>> futures,
+                         Predicate<String> include) throws ServletException, IOException {
+        List<MetricsSnapshot> snapshots = new ArrayList<>(futures.size());
+        for (CompletableFuture<MetricsSnapshot> future : futures) {
+            MetricsSnapshot snapshot = (future.isCompletedExceptionally() ? null : future.getNow(null));
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        if (snapshots.isEmpty()) {
+            resp.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        } else {
+            continueGet(req, resp, snapshots, include);
+        }
+    }
+
+    /*
+     * Sources addressed by a request path: all sources for /metrics,
+     * one named source for /metrics/<cluster>. Null if the path does
+     * not name a known cluster.
+     */
+    private List<ClusterMetricsSource> selectSources(String pathInfo) {
+        if (pathInfo == null || pathInfo.equals("/")) {
+            return new ArrayList<>(m_sources.values());
+        }
+        String name = pathInfo.substring(1);
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        ClusterMetricsSource source = m_sources.get(name);
+        return (source != null ? Collections.singletonList(source) : null);
+    }
+
+    /*
+     * Variant of MetricsServlet.doGet() that writes out our snapshots
+     * rather than the contents of a CollectorRegistry. The snapshots
+     * are already rendered, so this is mostly a copy to the output
+     * stream. The text format requires all samples of a metric family
+     * to appear together, under a single TYPE line, so the same family
+     * from different clusters has to be merged.
+     *
+     * The format is the client's preference among those in which all
+     * snapshots are available; a snapshot collected before a format
+     * was first asked for will not have it.
+     *
+     * If the client accepts gzip, a single snapshot is served from
+     * its cached compressed bytes, followed by the (small) agent
+     * metrics as a second gzip member. Merged or filtered output has
+     * to be compressed on the fly.
+     *
+     * Package access for benchmarks.
+     */
+    void continueGet(HttpServletRequest req, HttpServletResponse resp, List<MetricsSnapshot> snapshots,
+                     Predicate<String> include) throws ServletException, IOException {
+        Set<ExpositionFormat> available = EnumSet.allOf(ExpositionFormat.class);
+        for (MetricsSnapshot snapshot : snapshots) {
+            available.retainAll(snapshot.getFormats());
+        }
+        ExpositionFormat format = ExpositionFormat.negotiate(req.getHeader("Accept"), available);
+        boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
         resp.setStatus(HttpServletResponse.SC_OK);
-        resp.setContentType(TextFormat.CONTENT_TYPE_004);
-        CollectorRegistry reg = CollectorRegistry.defaultRegistry;
-        Set<String> names = m_engine.getAllGaugeNames(); // this makes all the difference
-        try (Writer writer = resp.getWriter()) {
-            TextFormat.write004(writer, reg.filteredMetricFamilySamples(names));
-            writer.flush();
+        resp.setContentType(format.getContentType());
+        resp.setHeader("Vary", "Accept, Accept-Encoding");
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        long now = System.currentTimeMillis();
+        try (OutputStream out = resp.getOutputStream()) {
+            if (snapshots.size() == 1 && include == null) {
+                MetricsSnapshot snapshot = snapshots.get(0);
+                if (gzip) {
+                    snapshot.getExposition(format).writeGzippedTo(out);
+                    snapshot.agentExposition(now, format).writeGzippedTo(out);
+                    Exposition.trailer(format).writeGzippedTo(out);
+                } else {
+                    snapshot.getExposition(format).writeTo(out);
+                    snapshot.agentExposition(now, format).writeTo(out);
+                    Exposition.trailer(format).writeTo(out);
+                }
+            } else {
+                Predicate<String> families = (include != null ? include : name -> true);
+                List<Exposition> parts = new ArrayList<>(snapshots.size() * 2);
+                for (MetricsSnapshot snapshot : snapshots) {
+                    parts.add(snapshot.getExposition(format));
+                    parts.add(snapshot.agentExposition(now, format));
+                }
+                if (gzip) {
+                    GZIPOutputStream gz = new GZIPOutputStream(out, 8192);
+                    Exposition.writeMerged(parts, families, gz);
+                    Exposition.trailer(format).writeTo(gz);
+                    gz.finish();
+                } else {
+                    Exposition.writeMerged(parts, families, out);
+                    Exposition.trailer(format).writeTo(out);
+                }
+            }
+            out.flush();
         }
     }
 
+    /*
+     * True if the Accept-Encoding header lists gzip, and does
+     * not give it zero quality.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException ex) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -107,18 +309,21 @@ public class PrometheusServlet extends MetricsServlet {
     @Override
     public void init() throws ServletException {
         super.init();
+        for (ClusterMetricsSource source : m_sources.values()) {
+            source.start();
+        }
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see java.lang.Object#finalize()
+     * @see javax.servlet.GenericServlet#destroy()
      */
     @Override
-    protected void finalize() throws Throwable {
-        if (m_engine != null) {
-            m_engine.disconnect();
+    public void destroy() {
+        for (ClusterMetricsSource source : m_sources.values()) {
+            source.stop();
         }
-        super.finalize();
+        super.destroy();
     }
 }
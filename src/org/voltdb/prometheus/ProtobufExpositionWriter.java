@@ -0,0 +1,204 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Writes the Prometheus protobuf format: a sequence of
+ * io.prometheus.client.MetricFamily messages, each preceded
+ * by its length as a varint.
+ *
+ * The encoding is done by hand, since we need only a few fields
+ * of a few messages (see metrics.proto in the Prometheus client
+ * model), and it lets us encode each label set once, as for the
+ * text formats; a Metric message is then the label set followed
+ * by the value.
+ *
+ * The length of a family is not known until it is complete, so
+ * space for the largest varint we could need is reserved at the
+ * start, and the family is moved down over any unused space
+ * when it is finished.
+ */
+class ProtobufExpositionWriter extends ExpositionWriter {
+
+    // MetricFamily fields
+    private static final int FAMILY_NAME = 1;
+    private static final int FAMILY_HELP = 2;
+    private static final int FAMILY_TYPE = 3;
+    private static final int FAMILY_METRIC = 4;
+
+    // MetricType values
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_UNTYPED = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+
+    // Metric fields
+    private static final int METRIC_LABEL = 1;
+    private static final int METRIC_GAUGE = 2;
+    private static final int METRIC_COUNTER = 3;
+    private static final int METRIC_SUMMARY = 4;
+    private static final int METRIC_UNTYPED = 5;
+    private static final int METRIC_HISTOGRAM = 7;
+
+    // Histogram fields
+    private static final int HISTOGRAM_COUNT = 1;
+    private static final int HISTOGRAM_SUM = 2;
+    private static final int HISTOGRAM_BUCKET = 3;
+
+    // Summary fields
+    private static final int SUMMARY_COUNT = 1;
+    private static final int SUMMARY_SUM = 2;
+    private static final int SUMMARY_QUANTILE = 3;
+
+    // Quantile fields
+    private static final int QUANTILE_QUANTILE = 1;
+    private static final int QUANTILE_VALUE = 2;
+
+    // Bucket fields
+    private static final int BUCKET_COUNT = 1;
+    private static final int BUCKET_BOUND = 2;
+
+    // LabelPair fields
+    private static final int LABEL_NAME = 1;
+    private static final int LABEL_VALUE = 2;
+
+    // Gauge, Counter, Untyped field
+    private static final int VALUE = 1;
+
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH = 2;
+
+    private static final int RESERVED = 5; // max varint for int length
+    private static final int VALUE_SIZE = 1 + 8; // tag + double
+    private static final int QUANTILE_SIZE = 2 * VALUE_SIZE;
+
+    private int m_valueField;
+
+    ProtobufExpositionWriter(int size) {
+        super(ExpositionFormat.PROTOBUF, size);
+    }
+
+    @Override
+    protected void writeHeader(int n, String name, Type type, String help, String unit) {
+        m_out.ensure(RESERVED);
+        m_out.length += RESERVED;
+        m_headerStart[n] = m_out.length;
+        m_out.writeStringField(FAMILY_NAME, name);
+        m_out.writeStringField(FAMILY_HELP, help);
+        m_out.writeVarintField(FAMILY_TYPE, typeValue(type));
+        m_valueField = (type == Type.COUNTER ? METRIC_COUNTER :
+                        type == Type.GAUGE ? METRIC_GAUGE : METRIC_UNTYPED);
+    }
+
+    @Override
+    protected void finishFamily(int n) {
+        int len = m_end[n] - m_headerStart[n];
+        int unused = RESERVED - OutputBuffer.varintSize(len);
+        if (unused > 0) {
+            System.arraycopy(m_out.bytes, m_headerStart[n], m_out.bytes, m_headerStart[n] - unused, len);
+            m_out.length -= unused;
+            m_headerStart[n] -= unused;
+            m_sampleStart[n] -= unused;
+            m_end[n] -= unused;
+        }
+        m_out.putVarint(m_familyStart[n], len);
+    }
+
+    @Override
+    public void value(int labelSet, double value) {
+        int metricLen = labelSetLength(labelSet) + 2 + VALUE_SIZE;
+        m_out.writeTag(FAMILY_METRIC, WIRE_LENGTH);
+        m_out.writeVarint(metricLen);
+        writeLabelSet(labelSet);
+        m_out.writeTag(m_valueField, WIRE_LENGTH);
+        m_out.writeByte(VALUE_SIZE);
+        m_out.writeTag(VALUE, WIRE_FIXED64);
+        m_out.writeFixed64(Double.doubleToRawLongBits(value));
+    }
+
+    /*
+     * The +Inf bucket is implicit in this format: its
+     * count is the histogram's sample count.
+     */
+    @Override
+    public void histogram(int labelSet, HistogramBuckets buckets, double[] cumulative,
+                          double count, double sum) {
+        int histLen = 1 + OutputBuffer.varintSize((long) count) + VALUE_SIZE;
+        for (int i = 0; i < buckets.size(); i++) {
+            int bucketLen = bucketSize(cumulative[i]);
+            histLen += 1 + OutputBuffer.varintSize(bucketLen) + bucketLen;
+        }
+        int metricLen = labelSetLength(labelSet) + 1 + OutputBuffer.varintSize(histLen) + histLen;
+        m_out.writeTag(FAMILY_METRIC, WIRE_LENGTH);
+        m_out.writeVarint(metricLen);
+        writeLabelSet(labelSet);
+        m_out.writeTag(METRIC_HISTOGRAM, WIRE_LENGTH);
+        m_out.writeVarint(histLen);
+        m_out.writeVarintField(HISTOGRAM_COUNT, (long) count);
+        m_out.writeDoubleField(HISTOGRAM_SUM, sum);
+        for (int i = 0; i < buckets.size(); i++) {
+            m_out.writeTag(HISTOGRAM_BUCKET, WIRE_LENGTH);
+            m_out.writeVarint(bucketSize(cumulative[i]));
+            m_out.writeVarintField(BUCKET_COUNT, (long) cumulative[i]);
+            m_out.writeDoubleField(BUCKET_BOUND, buckets.bound(i));
+        }
+    }
+
+    @Override
+    public void summary(int labelSet, HistogramBuckets quantiles, double[] values,
+                        double count, double sum) {
+        int summaryLen = 1 + OutputBuffer.varintSize((long) count) + VALUE_SIZE
+                       + quantiles.size() * (2 + QUANTILE_SIZE);
+        int metricLen = labelSetLength(labelSet) + 1 + OutputBuffer.varintSize(summaryLen) + summaryLen;
+        m_out.writeTag(FAMILY_METRIC, WIRE_LENGTH);
+        m_out.writeVarint(metricLen);
+        writeLabelSet(labelSet);
+        m_out.writeTag(METRIC_SUMMARY, WIRE_LENGTH);
+        m_out.writeVarint(summaryLen);
+        m_out.writeVarintField(SUMMARY_COUNT, (long) count);
+        m_out.writeDoubleField(SUMMARY_SUM, sum);
+        for (int i = 0; i < quantiles.size(); i++) {
+            m_out.writeTag(SUMMARY_QUANTILE, WIRE_LENGTH);
+            m_out.writeByte(QUANTILE_SIZE);
+            m_out.writeDoubleField(QUANTILE_QUANTILE, quantiles.bound(i));
+            m_out.writeDoubleField(QUANTILE_VALUE, values[i]);
+        }
+    }
+
+    private static int bucketSize(double count) {
+        return 1 + OutputBuffer.varintSize((long) count) + VALUE_SIZE;
+    }
+
+    @Override
+    protected void writeLabel(boolean first, String name, String value) {
+        int nameLen = OutputBuffer.utf8Length(name);
+        int valueLen = OutputBuffer.utf8Length(value);
+        int pairLen = 1 + OutputBuffer.varintSize(nameLen) + nameLen
+                    + 1 + OutputBuffer.varintSize(valueLen) + valueLen;
+        m_labels.writeTag(METRIC_LABEL, WIRE_LENGTH);
+        m_labels.writeVarint(pairLen);
+        m_labels.writeStringField(LABEL_NAME, name);
+        m_labels.writeStringField(LABEL_VALUE, value);
+    }
+
+    private static int typeValue(Type type) {
+        switch (type) {
+        case COUNTER:
+            return TYPE_COUNTER;
+        case GAUGE:
+            return TYPE_GAUGE;
+        case SUMMARY:
+            return TYPE_SUMMARY;
+        case HISTOGRAM:
+            return TYPE_HISTOGRAM;
+        default:
+            return TYPE_UNTYPED;
+        }
+    }
+}
@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -47,7 +45,7 @@ public class QueuePriorityStatsCallback extends AbstractStatsProcedureCallback i
         super(engine, "voltdb_queuepriority");
 
         addMetric(QueuePriority.CURRENT_DEPTH, "depth");
-        addMetric(QueuePriority.POLL_COUNT, "poll_count");
+        addMetric(QueuePriority.POLL_COUNT, "poll_count").cumulative();
         addMetric(QueuePriority.AVG_WAIT, "avg_wait", "seconds", 0.000001); // stats in microseconds
         addMetric(QueuePriority.MAX_WAIT, "max_wait", "seconds", 0.000001); // stats in microseconds
 
@@ -57,14 +55,14 @@ public class QueuePriorityStatsCallback extends AbstractStatsProcedureCallback i
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String siteid = String.valueOf(table.getLong(SiteStats.SITE_ID.name()));
-            String priority = String.valueOf(table.getLong(QueuePriority.PRIORITY.name()));
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, siteid, priority);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int siteIdCol = table.getColumnIndex(SiteStats.SITE_ID.name());
+        int priorityCol = table.getColumnIndex(QueuePriority.PRIORITY.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(siteIdCol));
+            labels.set(2, row.getLong(priorityCol));
+        });
     }
 }
@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -46,7 +44,7 @@ public class QueueStatsCallback extends AbstractStatsProcedureCallback implement
         super(engine, "voltdb_queue");
 
         addMetric(Queue.CURRENT_DEPTH, "depth");
-        addMetric(Queue.POLL_COUNT, "poll_count");
+        addMetric(Queue.POLL_COUNT, "poll_count").cumulative();
         addMetric(Queue.AVG_WAIT, "avg_wait", "seconds", 0.000001); // stats in microseconds
         addMetric(Queue.MAX_WAIT, "max_wait", "seconds", 0.000001); // stats in microseconds
 
@@ -56,13 +54,12 @@ public class QueueStatsCallback extends AbstractStatsProcedureCallback implement
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String siteid = String.valueOf(table.getLong(SiteStats.SITE_ID.name()));
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, siteid);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int siteIdCol = table.getColumnIndex(SiteStats.SITE_ID.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(siteIdCol));
+        });
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Limits a scrape to some of our metrics, as requested by query
+ * parameters:
+ *
+ *  name[]=metric       metric families by name (repeatable)
+ *  selector=LATENCY,.. all metrics of statistics selectors (repeatable)
+ *
+ * A family is served if it matches either form. The agent's own
+ * metrics are served with any selector filter, but only by name
+ * with a name filter. Without parameters, everything is served.
+ *
+ * When collecting on request, only the selectors needed for the
+ * requested metrics are polled. This allows, say, a frequent
+ * Prometheus job for cheap selectors and an infrequent one for
+ * expensive selectors to share one agent.
+ */
+final class ScrapeFilter {
+
+    static final ScrapeFilter ALL = new ScrapeFilter(null, null);
+
+    private final Set<String> m_names; // null if no name filter
+    private final Set<SupportedStatsSelectors> m_selectors; // null if no selector filter
+
+    private ScrapeFilter(Set<String> names, Set<SupportedStatsSelectors> selectors) {
+        m_names = names;
+        m_selectors = selectors;
+    }
+
+    /**
+     * Builds a filter from the values of the name[] and selector
+     * parameters, either or both of which may be null.
+     *
+     * @throws IllegalArgumentException for an unknown selector
+     */
+    static ScrapeFilter parse(String[] names, String[] selectors) {
+        if (names == null && selectors == null) {
+            return ALL;
+        }
+        Set<String> nameSet = null;
+        if (names != null) {
+            nameSet = new HashSet<>(Arrays.asList(names));
+        }
+        Set<SupportedStatsSelectors> selectorSet = null;
+        if (selectors != null) {
+            selectorSet = EnumSet.noneOf(SupportedStatsSelectors.class);
+            for (String param : selectors) {
+                for (String sel : param.split(",")) {
+                    sel = sel.trim();
+                    if (sel.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        selectorSet.add(SupportedStatsSelectors.valueOf(sel.toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Unknown statistics selector '" + sel + "'");
+                    }
+                }
+            }
+        }
+        return new ScrapeFilter(nameSet, selectorSet);
+    }
+
+    boolean isFiltered() {
+        return m_names != null || m_selectors != null;
+    }
+
+    /**
+     * Selectors of a source that must be polled for this filter.
+     */
+    Set<SupportedStatsSelectors> selectorsFor(ClusterMetricsSource source) {
+        Set<SupportedStatsSelectors> available = source.getSelectors();
+        if (!isFiltered()) {
+            return available;
+        }
+        Set<SupportedStatsSelectors> result = EnumSet.noneOf(SupportedStatsSelectors.class);
+        if (m_names != null) {
+            for (String name : m_names) {
+                SupportedStatsSelectors selector = source.selectorOf(name);
+                if (selector != null) {
+                    result.add(selector);
+                }
+            }
+        }
+        if (m_selectors != null) {
+            for (SupportedStatsSelectors selector : m_selectors) {
+                if (available.contains(selector)) {
+                    result.add(selector);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether to serve a family, given the selector that provides
+     * it (null for the agent's own metrics).
+     */
+    boolean includes(String family, SupportedStatsSelectors selector) {
+        if (!isFiltered()) {
+            return true;
+        }
+        if (m_names != null && m_names.contains(family)) {
+            return true;
+        }
+        return m_selectors != null && (selector == null || m_selectors.contains(selector));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Health of one statistics selector. A failing selector is quarantined,
+ * with exponential backoff, while other selectors continue to be polled
+ * over the same connection. A selector that the server does not support
+ * is disabled for the life of the agent. State changes are logged once,
+ * when they happen.
+ */
+class SelectorHealth {
+    private static final VoltLogger logger = new VoltLogger("CONSOLE");
+
+    enum State {
+        HEALTHY,
+        QUARANTINED,
+        DISABLED,
+    }
+
+    static final long INITIAL_BACKOFF = 10_000; // msec
+    static final long MAX_BACKOFF = 600_000; // msec
+
+    private final SupportedStatsSelectors m_selector;
+    private final String m_servers; // for logging
+    private State m_state = State.HEALTHY;
+    private int m_failures; // consecutive
+    private long m_retryAt; // wall clock msec, when quarantined
+
+    SelectorHealth(SupportedStatsSelectors selector, String servers) {
+        m_selector = selector;
+        m_servers = servers;
+    }
+
+    State getState() {
+        return m_state;
+    }
+
+    /**
+     * True if the selector may be polled at time 'now'.
+     */
+    boolean isPollable(long now) {
+        switch (m_state) {
+        case HEALTHY:
+            return true;
+        case QUARANTINED:
+            return now >= m_retryAt;
+        default:
+            return false;
+        }
+    }
+
+    void recordSuccess() {
+        if (m_state != State.HEALTHY) {
+            logger.info(String.format("Statistics %s for server %s recovered after %d failures",
+                                      m_selector, m_servers, m_failures));
+        }
+        m_state = State.HEALTHY;
+        m_failures = 0;
+    }
+
+    /**
+     * Records a failed call. The status is that of the response,
+     * or zero if there was no response.
+     */
+    void recordFailure(long now, byte status, String reason) {
+        if (isUnsupported(status, reason)) {
+            m_state = State.DISABLED;
+            logger.warn(String.format("Statistics %s not supported by server %s, disabled: %s",
+                                      m_selector, m_servers, reason));
+            return;
+        }
+        m_failures++;
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(m_failures - 1, 16));
+        m_retryAt = now + backoff;
+        if (m_state != State.QUARANTINED) {
+            m_state = State.QUARANTINED;
+            logger.warn(String.format("Statistics %s for server %s failed, quarantined: %s",
+                                      m_selector, m_servers, reason));
+        }
+    }
+
+    /*
+     * An unknown selector is rejected by @Statistics with a graceful
+     * failure whose message mentions the selector; that will not
+     * change without a server upgrade, so there is no point retrying.
+     */
+    private static boolean isUnsupported(byte status, String reason) {
+        return status == ClientResponse.GRACEFUL_FAILURE
+            && reason != null
+            && reason.toLowerCase().contains("selector");
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Storage for all metrics of one statistics class that share a set of
+ * label names. This replaces one Gauge per metric, where every label
+ * combination became a child object in a map keyed by a list of strings.
+ *
+ * Layout is columnar. Each distinct tuple of label values is assigned
+ * a small integer series id, found through an open-addressing hash table
+ * of ints; label values are kept per label name, indexed by series id,
+ * with repeated values (hostnames, etc.) shared. Each metric is a column,
+ * a plain double[] indexed by series id. A row of @Statistics output is
+ * thus one hash lookup followed by array stores.
+ *
+ * A series with no value for a metric holds NaN in that column and is
+ * not exported for that metric.
+ *
+ * Optional constant labels (the cluster name) are prefixed to the labels
+ * of every sample.
+ *
+ * Series come and go (client connections, dropped tables, moved
+ * partitions). The store counts update cycles, each being one processed
+ * @Statistics response, and records the cycle in which each series was
+ * last seen; endCycle evicts series that have been missing for too long.
+ *
+ * A delta column holds the difference between successive values set
+ * for a series, rather than the value itself; this is used to turn
+ * VoltDB cumulative counts into per-poll deltas without asking the
+ * server to reset its counters. The previous raw value is kept in a
+ * parallel double[]. A value lower than the previous one means the
+ * counter was reset (the host restarted), and the delta is then the
+ * new value. A delta column may have an associated rate column, the
+ * delta divided by the time between the two updates of the series.
+ *
+ * A counter column is exported as a Prometheus counter. It also keeps
+ * the previous raw value, plus an offset per series: when the raw value
+ * goes down (reset on host restart or rejoin), the last value before
+ * the reset is added to the offset, so that the exported value never
+ * decreases.
+ *
+ * A histogram column holds, for each series, the cumulative count for
+ * each bucket (one double[] per series, reused from one update to the
+ * next) and the sum of observations; the column's values are the total
+ * counts. A summary column is held the same way, with the value at each
+ * quantile in place of the bucket counts.
+ *
+ * All access is synchronized on the store; updates come from the VoltDB
+ * client callback thread, and render() from whoever builds a snapshot.
+ */
+public class SeriesStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * One metric: a Prometheus name, help text, optional unit,
+     * and a value per series.
+     */
+    private static class Column {
+        final String name;
+        final String help;
+        final String unit;
+        final Type type;
+        double[] values;
+        double[] previous; // raw values, for delta or counter column
+        double[] offsets; // for counter column only
+        Column rate; // optional, for delta column only
+        HistogramBuckets buckets; // for histogram column, or quantiles for summary
+        double[][] bucketCounts; // [series][bucket], or [series][quantile]
+        double[] sums; // histogram or summary only
+
+        Column(String name, String help, String unit, Type type, int capacity) {
+            this.name = name;
+            this.help = help;
+            this.unit = unit;
+            this.type = type;
+            this.values = newValues(capacity);
+        }
+    }
+
+    private final String[] m_labelNames;
+    private final List<String> m_allLabelNames; // const labels + our labels
+    private final String[] m_constLabelValues;
+    private final List<Column> m_columns = new ArrayList<>();
+
+    /*
+     * Series data: label values [label][series], and hash of
+     * each series' label tuple. The hash table holds series id + 1,
+     * with 0 for an empty slot; its size is a power of two.
+     */
+    private String[][] m_labelValues;
+    private int[] m_hashes;
+    private int[] m_lastSeen; // cycle number
+    private long[] m_updateTimes; // msec, time of last cycle that saw series
+    private long[] m_prevUpdateTimes; // msec, time of the cycle before that
+    private int[] m_table;
+    private int m_seriesCount;
+    private int m_capacity;
+    private int m_cycle;
+    private long m_cycleTime;
+
+    /*
+     * Canonical instances of label values, per label, so that a
+     * value shared by many series is stored once.
+     */
+    private final List<HashMap<String,String>> m_canonical;
+
+    public SeriesStore(String[] labelNames, String[] constLabelNames, String[] constLabelValues) {
+        m_labelNames = labelNames.clone();
+        m_constLabelValues = constLabelValues.clone();
+        List<String> all = new ArrayList<>(constLabelNames.length + labelNames.length);
+        all.addAll(Arrays.asList(constLabelNames));
+        all.addAll(Arrays.asList(labelNames));
+        m_allLabelNames = Collections.unmodifiableList(all);
+        m_capacity = INITIAL_CAPACITY;
+        m_labelValues = new String[labelNames.length][m_capacity];
+        m_hashes = new int[m_capacity];
+        m_lastSeen = new int[m_capacity];
+        m_updateTimes = new long[m_capacity];
+        m_prevUpdateTimes = new long[m_capacity];
+        m_table = new int[m_capacity * 2];
+        m_canonical = new ArrayList<>(labelNames.length);
+        for (int i = 0; i < labelNames.length; i++) {
+            m_canonical.add(new HashMap<>());
+        }
+    }
+
+    public String[] getLabelNames() {
+        return m_labelNames.clone();
+    }
+
+    /**
+     * Adds a metric, returning its column index.
+     */
+    public synchronized int addColumn(String name, String help, String unit) {
+        m_columns.add(new Column(name, help, unit, Type.GAUGE, m_capacity));
+        return m_columns.size() - 1;
+    }
+
+    /**
+     * Adds a metric whose exported value is the change in the value
+     * set for each series, returning its column index. If 'rateName'
+     * is not null, a second metric is added for the change per second.
+     */
+    public synchronized int addDeltaColumn(String name, String help, String unit, String rateName, String rateHelp) {
+        Column col = new Column(name, help, unit, Type.GAUGE, m_capacity);
+        col.previous = newValues(m_capacity);
+        m_columns.add(col);
+        int index = m_columns.size() - 1;
+        if (rateName != null) {
+            col.rate = new Column(rateName, rateHelp, null, Type.GAUGE, m_capacity);
+            m_columns.add(col.rate);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a metric that is exported as a counter, compensating
+     * for resets of the values set for each series, returning
+     * its column index.
+     */
+    public synchronized int addCounterColumn(String name, String help, String unit) {
+        Column col = new Column(name, help, unit, Type.COUNTER, m_capacity);
+        col.previous = newValues(m_capacity);
+        col.offsets = new double[m_capacity];
+        m_columns.add(col);
+        return m_columns.size() - 1;
+    }
+
+    /**
+     * Adds a histogram metric, returning its column index.
+     * Values are set with setHistogram.
+     */
+    public synchronized int addHistogramColumn(String name, String help, String unit, HistogramBuckets buckets) {
+        Column col = new Column(name, help, unit, Type.HISTOGRAM, m_capacity);
+        col.buckets = buckets;
+        col.bucketCounts = new double[m_capacity][];
+        col.sums = newValues(m_capacity);
+        m_columns.add(col);
+        return m_columns.size() - 1;
+    }
+
+    /**
+     * Adds a summary metric, returning its column index.
+     * Values are set with setHistogram, giving the value
+     * at each quantile in place of bucket counts.
+     */
+    public synchronized int addSummaryColumn(String name, String help, String unit, HistogramBuckets quantiles) {
+        Column col = new Column(name, help, unit, Type.SUMMARY, m_capacity);
+        col.buckets = quantiles;
+        col.bucketCounts = new double[m_capacity][];
+        col.sums = newValues(m_capacity);
+        m_columns.add(col);
+        return m_columns.size() - 1;
+    }
+
+    public synchronized List<String> getColumnNames() {
+        List<String> names = new ArrayList<>(m_columns.size());
+        for (Column col : m_columns) {
+            names.add(col.name);
+        }
+        return names;
+    }
+
+    public synchronized int getSeriesCount() {
+        return m_seriesCount;
+    }
+
+    /**
+     * Passes the name of each family, and the number
+     * of series that have a value in it.
+     */
+    public synchronized void countSeries(ObjIntConsumer<String> counts) {
+        for (Column col : m_columns) {
+            int count = 0;
+            for (int id = 0; id < m_seriesCount; id++) {
+                if (!Double.isNaN(col.values[id])) {
+                    count++;
+                }
+            }
+            counts.accept(col.name, count);
+        }
+    }
+
+    /**
+     * Returns the series id for a tuple of label values, creating
+     * the series if necessary. The series is marked as seen in the
+     * current cycle. The array is not retained, and may be reused by
+     * the caller.
+     */
+    public synchronized int series(String[] labelValues) {
+        int hash = hash(labelValues);
+        int mask = m_table.length - 1;
+        int slot = hash & mask;
+        for (int entry; (entry = m_table[slot]) != 0; slot = (slot + 1) & mask) {
+            int id = entry - 1;
+            if (m_hashes[id] == hash && matches(id, labelValues)) {
+                if (m_lastSeen[id] != m_cycle) {
+                    m_lastSeen[id] = m_cycle;
+                    m_prevUpdateTimes[id] = m_updateTimes[id];
+                    m_updateTimes[id] = m_cycleTime;
+                }
+                return id;
+            }
+        }
+        int id = m_seriesCount++;
+        if (id == m_capacity) {
+            grow();
+            return insert(labelValues, hash, id);
+        }
+        m_table[slot] = id + 1;
+        storeLabels(id, labelValues, hash);
+        return id;
+    }
+
+    /**
+     * Sets the value of a metric (by column index) for a series.
+     * For a delta column, the first value set for a series only
+     * establishes the baseline, and nothing is exported until the
+     * next cycle.
+     */
+    public synchronized void set(int column, int series, double value) {
+        Column col = m_columns.get(column);
+        if (col.previous == null) {
+            col.values[series] = value;
+            return;
+        }
+        double last = col.previous[series];
+        col.previous[series] = value;
+        if (col.offsets != null) {
+            if (value < last) {
+                col.offsets[series] += last; // counter was reset
+            }
+            col.values[series] = value + col.offsets[series];
+            return;
+        }
+        double delta;
+        if (Double.isNaN(last)) {
+            delta = Double.NaN; // first value, no delta yet
+        } else if (value >= last) {
+            delta = value - last;
+        } else {
+            delta = value; // counter was reset
+        }
+        col.values[series] = delta;
+        if (col.rate != null) {
+            long elapsed = m_updateTimes[series] - m_prevUpdateTimes[series];
+            col.rate.values[series] = (elapsed > 0 ? delta * 1000.0 / elapsed : Double.NaN);
+        }
+    }
+
+    /**
+     * Sets the value of a histogram column for a series: cumulative
+     * counts for each bucket (or for a summary, the value at each
+     * quantile), total count, and sum of observations. The counts
+     * are copied.
+     */
+    public synchronized void setHistogram(int column, int series, double[] cumulative, double count, double sum) {
+        Column col = m_columns.get(column);
+        double[] counts = col.bucketCounts[series];
+        if (counts == null) {
+            counts = col.bucketCounts[series] = new double[col.buckets.size()];
+        }
+        System.arraycopy(cumulative, 0, counts, 0, counts.length);
+        col.values[series] = count;
+        col.sums[series] = sum;
+    }
+
+    public synchronized double get(int column, int series) {
+        return m_columns.get(column).values[series];
+    }
+
+    /**
+     * Begins an update cycle, at time 'now' (msec).
+     */
+    public synchronized void beginCycle(long now) {
+        m_cycle++;
+        m_cycleTime = now;
+    }
+
+    /**
+     * Ends the current update cycle. Series not seen in the last
+     * 'maxMissed' cycles, including this one, are removed; zero
+     * disables removal. Returns the number of series removed.
+     *
+     * Series ids are not stable across this call: the remaining
+     * series are compacted.
+     */
+    public synchronized int endCycle(int maxMissed) {
+        int evicted = 0;
+        if (maxMissed > 0) {
+            int id = 0;
+            while (id < m_seriesCount) {
+                if (m_cycle - m_lastSeen[id] >= maxMissed) {
+                    moveSeries(--m_seriesCount, id);
+                    evicted++;
+                } else {
+                    id++;
+                }
+            }
+            if (evicted != 0) {
+                rebuildTable(m_seriesCount);
+                rebuildCanonical();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Writes all metrics in the writer's format, without creating any
+     * intermediate objects; the labels of each series are encoded once,
+     * and shared by all columns.
+     */
+    public synchronized void render(ExpositionWriter out) {
+        out.clearLabelSets();
+        for (int id = 0; id < m_seriesCount; id++) {
+            out.beginLabelSet();
+            for (int i = 0; i < m_constLabelValues.length; i++) {
+                out.label(m_allLabelNames.get(i), m_constLabelValues[i]);
+            }
+            for (int i = 0; i < m_labelNames.length; i++) {
+                out.label(m_labelNames[i], m_labelValues[i][id]);
+            }
+            out.endLabelSet(); // index is series id
+        }
+        for (Column col : m_columns) {
+            out.startFamily(col.name, col.type, col.help, col.unit);
+            double[] values = col.values;
+            for (int id = 0; id < m_seriesCount; id++) {
+                double value = values[id];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                if (col.type == Type.SUMMARY) {
+                    out.summary(id, col.buckets, col.bucketCounts[id], value, col.sums[id]);
+                } else if (col.buckets != null) {
+                    out.histogram(id, col.buckets, col.bucketCounts[id], value, col.sums[id]);
+                } else {
+                    out.value(id, value);
+                }
+            }
+            out.endFamily();
+        }
+        out.clearLabelSets();
+    }
+
+    /*
+     * Internals
+     */
+
+    private static int hash(String[] labelValues) {
+        int h = 1;
+        for (String v : labelValues) {
+            h = 31 * h + (v == null ? 0 : v.hashCode());
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean matches(int id, String[] labelValues) {
+        for (int i = 0; i < labelValues.length; i++) {
+            String v = m_labelValues[i][id];
+            if (v != labelValues[i] && (v == null || !v.equals(labelValues[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insert(String[] labelValues, int hash, int id) {
+        int mask = m_table.length - 1;
+        int slot = hash & mask;
+        while (m_table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        m_table[slot] = id + 1;
+        storeLabels(id, labelValues, hash);
+        return id;
+    }
+
+    private void storeLabels(int id, String[] labelValues, int hash) {
+        for (int i = 0; i < labelValues.length; i++) {
+            String v = labelValues[i];
+            if (v != null) {
+                String canon = m_canonical.get(i).putIfAbsent(v, v);
+                if (canon != null) {
+                    v = canon;
+                }
+            }
+            m_labelValues[i][id] = v;
+        }
+        m_hashes[id] = hash;
+        m_lastSeen[id] = m_cycle;
+        m_updateTimes[id] = m_cycleTime;
+        m_prevUpdateTimes[id] = 0;
+    }
+
+    /*
+     * Moves the last series into the slot of a removed one, and
+     * clears the vacated slot. The hash table is not updated.
+     */
+    private void moveSeries(int from, int to) {
+        for (int i = 0; i < m_labelValues.length; i++) {
+            m_labelValues[i][to] = m_labelValues[i][from];
+            m_labelValues[i][from] = null;
+        }
+        m_hashes[to] = m_hashes[from];
+        m_lastSeen[to] = m_lastSeen[from];
+        m_updateTimes[to] = m_updateTimes[from];
+        m_prevUpdateTimes[to] = m_prevUpdateTimes[from];
+        for (Column col : m_columns) {
+            col.values[to] = col.values[from];
+            col.values[from] = Double.NaN;
+            if (col.previous != null) {
+                col.previous[to] = col.previous[from];
+                col.previous[from] = Double.NaN;
+            }
+            if (col.offsets != null) {
+                col.offsets[to] = col.offsets[from];
+                col.offsets[from] = 0;
+            }
+            if (col.buckets != null) {
+                col.bucketCounts[to] = col.bucketCounts[from];
+                col.bucketCounts[from] = null;
+                col.sums[to] = col.sums[from];
+                col.sums[from] = Double.NaN;
+            }
+        }
+    }
+
+    /*
+     * Builds the hash table for series 0..count-1
+     */
+    private void rebuildTable(int count) {
+        Arrays.fill(m_table, 0);
+        int mask = m_table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = m_hashes[id] & mask;
+            while (m_table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            m_table[slot] = id + 1;
+        }
+    }
+
+    /*
+     * Drops canonical label values no longer used by any series
+     */
+    private void rebuildCanonical() {
+        for (int i = 0; i < m_labelValues.length; i++) {
+            HashMap<String,String> canon = m_canonical.get(i);
+            canon.clear();
+            for (int id = 0; id < m_seriesCount; id++) {
+                String v = m_labelValues[i][id];
+                if (v != null) {
+                    canon.put(v, v);
+                }
+            }
+        }
+    }
+
+    /*
+     * Doubles capacity of all per-series arrays, and rebuilds
+     * the hash table (kept at most half full).
+     */
+    private void grow() {
+        int newCapacity = m_capacity * 2;
+        for (int i = 0; i < m_labelValues.length; i++) {
+            m_labelValues[i] = Arrays.copyOf(m_labelValues[i], newCapacity);
+        }
+        m_hashes = Arrays.copyOf(m_hashes, newCapacity);
+        m_lastSeen = Arrays.copyOf(m_lastSeen, newCapacity);
+        m_updateTimes = Arrays.copyOf(m_updateTimes, newCapacity);
+        m_prevUpdateTimes = Arrays.copyOf(m_prevUpdateTimes, newCapacity);
+        for (Column col : m_columns) {
+            col.values = grow(col.values, newCapacity);
+            if (col.previous != null) {
+                col.previous = grow(col.previous, newCapacity);
+            }
+            if (col.offsets != null) {
+                col.offsets = Arrays.copyOf(col.offsets, newCapacity);
+            }
+            if (col.buckets != null) {
+                col.bucketCounts = Arrays.copyOf(col.bucketCounts, newCapacity);
+                col.sums = grow(col.sums, newCapacity);
+            }
+        }
+        m_capacity = newCapacity;
+        m_table = new int[newCapacity * 2];
+        rebuildTable(m_seriesCount - 1); // new series not yet inserted
+    }
+
+    private double[] grow(double[] old, int newCapacity) {
+        double[] values = newValues(newCapacity);
+        System.arraycopy(old, 0, values, 0, m_capacity);
+        return values;
+    }
+
+    private static double[] newValues(int capacity) {
+        double[] values = new double[capacity];
+        Arrays.fill(values, Double.NaN);
+        return values;
+    }
+}
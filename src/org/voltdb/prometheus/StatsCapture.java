@@ -0,0 +1,166 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.VoltTable;
+
+/**
+ * Capture of raw @Statistics responses, as received by the statistics
+ * callbacks, to a binary log that StatsReplay can feed back through
+ * the callbacks. This makes a misbehaving collection reproducible
+ * away from the cluster.
+ *
+ * The file starts with a header:
+ *
+ *  int    MAGIC
+ *  byte   VERSION
+ *
+ * followed by one record per response:
+ *
+ *  int    length of the rest of the record
+ *  long   time received, wall clock msec
+ *  byte   length of selector name
+ *  bytes  selector name, ASCII
+ *  short  number of tables
+ *  tables each as serialized by VoltTable.flattenToBuffer
+ *         (int length, then the table)
+ *
+ * Tables are kept in VoltDB's own serialization, which is already
+ * compact, and which can be read back without copying. A capture is
+ * appended to if it exists, so that restarts do not lose earlier
+ * records.
+ *
+ * Records are written by whichever thread delivers a response, one
+ * write per record. A failure to write is logged, and ends the
+ * capture; collection carries on.
+ */
+class StatsCapture {
+    private static final VoltLogger logger = new VoltLogger("CONSOLE");
+
+    static final int MAGIC = 0x56434150; // "VCAP"
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 5;
+
+    private final Path m_path;
+    private FileChannel m_channel; // null once failed or closed
+    private ByteBuffer m_buffer = ByteBuffer.allocate(64 * 1024);
+    private long m_records;
+    private long m_bytes;
+
+    private StatsCapture(Path path, FileChannel channel) {
+        m_path = path;
+        m_channel = channel;
+    }
+
+    /**
+     * Opens a capture file for appending, creating it with a
+     * header if it does not exist (or is empty).
+     */
+    static StatsCapture open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() == 0) {
+                header.putInt(MAGIC).put(VERSION).flip();
+                writeFully(channel, header);
+            } else {
+                checkHeader(channel, header, path);
+                channel.position(channel.size());
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new StatsCapture(path, channel);
+    }
+
+    /**
+     * Reads and checks the header of a capture file, at the start
+     * of the channel, into the given buffer.
+     */
+    static void checkHeader(FileChannel channel, ByteBuffer header, Path path) throws IOException {
+        header.clear();
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // reading
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException(path + " is not a statistics capture");
+        }
+        byte version = header.get();
+        if (version != VERSION) {
+            throw new IOException(path + " is a capture of unsupported version " + version);
+        }
+    }
+
+    /**
+     * Appends a response for a selector.
+     */
+    synchronized void append(String selector, long timestamp, VoltTable[] tables) {
+        if (m_channel == null) {
+            return;
+        }
+        byte[] name = selector.getBytes(StandardCharsets.US_ASCII);
+        int size = 4 + 8 + 1 + name.length + 2;
+        for (VoltTable table : tables) {
+            size += table.getSerializedSize();
+        }
+        if (m_buffer.capacity() < size) {
+            m_buffer = ByteBuffer.allocate(Math.max(m_buffer.capacity() * 2, size));
+        }
+        ByteBuffer buf = m_buffer;
+        buf.clear();
+        buf.putInt(size - 4);
+        buf.putLong(timestamp);
+        buf.put((byte) name.length);
+        buf.put(name);
+        buf.putShort((short) tables.length);
+        for (VoltTable table : tables) {
+            table.flattenToBuffer(buf);
+        }
+        buf.flip();
+        try {
+            writeFully(m_channel, buf);
+            m_records++;
+            m_bytes += size;
+        } catch (IOException ex) {
+            logger.error(String.format("Failed to write statistics capture %s, capture stopped: %s",
+                                       m_path, ex.getMessage()));
+            close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Stops capturing and closes the file.
+     */
+    synchronized void close() {
+        if (m_channel != null) {
+            try {
+                m_channel.close();
+            } catch (IOException ex) {
+                // nothing to be done
+            }
+            m_channel = null;
+            logger.info(String.format("Closed statistics capture %s: %d responses, %d bytes",
+                                      m_path, m_records, m_bytes));
+        }
+    }
+}
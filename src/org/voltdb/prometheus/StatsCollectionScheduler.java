@@ -0,0 +1,85 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.voltcore.logging.VoltLogger;
+
+/**
+ * Polls VoltDB in the background, on a fixed period, and publishes
+ * the result as an immutable MetricsSnapshot. The Prometheus servlet
+ * then only ever serves the latest snapshot, and scrape latency is
+ * independent of VoltDB response time.
+ *
+ * A failed collection does not replace the current snapshot; the
+ * previous data continues to be served, and its age increases, which
+ * is what should be alerted on.
+ */
+public class StatsCollectionScheduler {
+    private static final VoltLogger logger = new VoltLogger("CONSOLE");
+
+    private final String m_name; // cluster name, or null
+    private final VoltDBPrometheusMetricEngine m_engine;
+    private final long m_periodMs;
+    private ScheduledExecutorService m_executor;
+
+    /**
+     * Latest successful collection, or null if there has not yet
+     * been one.
+     */
+    private volatile MetricsSnapshot m_latest;
+
+    public StatsCollectionScheduler(String name, VoltDBPrometheusMetricEngine engine, long periodMs) {
+        m_name = name;
+        m_engine = engine;
+        m_periodMs = periodMs;
+    }
+
+    public synchronized void start() {
+        if (m_executor == null) {
+            m_executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "VoltDB statistics collector" + (m_name != null ? " " + m_name : ""));
+                t.setDaemon(true);
+                return t;
+            });
+            m_executor.scheduleWithFixedDelay(this::collect, 0, m_periodMs, TimeUnit.MILLISECONDS);
+            logger.info(String.format("Polling VoltDB statistics every %d msec", m_periodMs));
+        }
+    }
+
+    public synchronized void stop() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+    }
+
+    public MetricsSnapshot getLatest() {
+        return m_latest;
+    }
+
+    /*
+     * Runs on the scheduler thread. Exceptions must not escape,
+     * since that would cancel all subsequent executions.
+     */
+    private void collect() {
+        try {
+            synchronized (m_engine) {
+                long start = System.currentTimeMillis();
+                if (m_engine.gatherMetrics()) {
+                    long end = System.currentTimeMillis();
+                    m_latest = new MetricsSnapshot(m_engine.getClusterName(), m_engine.render(), m_engine.getSelectors(),
+                                                   end, end - start);
+                }
+            }
+        } catch (Throwable ex) {
+            logger.error("Unexpected failure in statistics collection: " + ex);
+        }
+    }
+}
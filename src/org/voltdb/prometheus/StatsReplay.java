@@ -0,0 +1,289 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.PrivateVoltTableFactory;
+import org.voltdb.VoltTable;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Replays a statistics capture (see StatsCapture) through the
+ * statistics callbacks of an engine, as if the responses had just
+ * been received from VoltDB, for reproducing problems, profiling,
+ * and regression testing.
+ *
+ * Options:
+ *
+ *  --file=FILE      capture to replay (required)
+ *  --speed=N        N times the original speed, 0 for as fast as
+ *                   possible (default 1)
+ *  --repeat=N       number of times to replay the capture (1)
+ *  --delta=         as for the agent; should match the agent
+ *  --counters=      that made the capture
+ *  --evictafter=N
+ *  --output=FILE    text exposition of all metrics, as of the
+ *                   end of the replay
+ *
+ * Each response is processed at its recorded time (scaled by the
+ * speed), and with that time as its time of receipt, so that rates
+ * in delta mode are as they were. A collection is taken to end when
+ * a selector recurs, at which point the metrics are rendered, as the
+ * agent would for a scrape. A capture written by several runs of the
+ * agent is replayed with the gaps between runs, unless the speed is 0.
+ *
+ * The capture is read through memory mapping, a window at a time,
+ * and tables are read in place, without copying; a capture larger
+ * than memory is paged in as it is replayed.
+ */
+public class StatsReplay {
+    private static final VoltLogger logger = new VoltLogger("CONSOLE");
+
+    private static final long WINDOW = 1L << 30; // bytes mapped at a time
+    private static final int MIN_RECORD = 8 + 1 + 2;
+
+    private final Path m_path;
+    private final FileChannel m_channel;
+    private final long m_size;
+    private MappedByteBuffer m_window;
+    private long m_windowStart;
+    private long m_position; // file offset of next record
+
+    // Current record
+    private long m_timestamp;
+    private String m_selector;
+    private VoltTable[] m_tables;
+
+    /*
+     * Counts, over all passes
+     */
+    private long m_responses;
+    private long m_rows;
+    private long m_collections;
+    private long m_skipped;
+    private long m_failed;
+
+    StatsReplay(Path path) throws IOException {
+        m_path = path;
+        m_channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            StatsCapture.checkHeader(m_channel, ByteBuffer.allocate(StatsCapture.HEADER_SIZE), path);
+            m_size = m_channel.size();
+        } catch (IOException ex) {
+            m_channel.close();
+            throw ex;
+        }
+        rewind();
+    }
+
+    /**
+     * Positions before the first record.
+     */
+    void rewind() {
+        m_position = StatsCapture.HEADER_SIZE;
+    }
+
+    /**
+     * Advances to the next record, returning false at the end of the
+     * capture. An incomplete record at the end (from a capture that
+     * was interrupted) is treated as the end.
+     */
+    boolean next() throws IOException {
+        long remaining = m_size - m_position;
+        if (remaining < 4) {
+            return false;
+        }
+        int length = map(m_position, 4).getInt();
+        if (length < MIN_RECORD || length > remaining - 4) {
+            logger.warn(String.format("Incomplete record at offset %d of capture %s, ignored", m_position, m_path));
+            m_position = m_size;
+            return false;
+        }
+        ByteBuffer rec = map(m_position + 4, length);
+        m_timestamp = rec.getLong();
+        byte[] name = new byte[rec.get() & 0xff];
+        rec.get(name);
+        m_selector = new String(name, StandardCharsets.US_ASCII);
+        m_tables = new VoltTable[rec.getShort()];
+        for (int i = 0; i < m_tables.length; i++) {
+            m_tables[i] = PrivateVoltTableFactory.createVoltTableFromSharedBuffer(rec);
+        }
+        m_position += 4 + length;
+        return true;
+    }
+
+    /*
+     * A buffer holding 'length' bytes of the file at 'offset', from the
+     * current window, or from a new window starting at 'offset'. Tables
+     * read from an earlier window keep it mapped while they are in use.
+     */
+    private ByteBuffer map(long offset, int length) throws IOException {
+        if (m_window == null || offset < m_windowStart || offset + length > m_windowStart + m_window.capacity()) {
+            long size = Math.min(WINDOW, m_size - offset);
+            if (length > size) {
+                throw new IOException(String.format("Record of %d bytes at offset %d of capture %s is too large",
+                                                    length, offset, m_path));
+            }
+            m_window = m_channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            m_windowStart = offset;
+        }
+        ByteBuffer buf = m_window.duplicate();
+        buf.position((int) (offset - m_windowStart));
+        buf.limit(buf.position() + length);
+        return buf.slice();
+    }
+
+    long timestamp() {
+        return m_timestamp;
+    }
+
+    String selector() {
+        return m_selector;
+    }
+
+    VoltTable[] tables() {
+        return m_tables;
+    }
+
+    void close() throws IOException {
+        m_window = null;
+        m_channel.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String file = null;
+        String output = null;
+        int speed = 1;
+        int repeat = 1;
+        boolean delta = false;
+        boolean counters = false;
+        int evictAfter = VoltDBPrometheusMetricEngine.DEFAULT_EVICT_AFTER;
+        for (String arg : args) {
+            if (arg.startsWith("--file")) {
+                file = VoltDBPrometheusAgent.extractArgString(arg);
+            } else if (arg.startsWith("--speed")) {
+                speed = VoltDBPrometheusAgent.extractArgInteger(arg, 0, 1_000_000);
+            } else if (arg.startsWith("--repeat")) {
+                repeat = VoltDBPrometheusAgent.extractArgInteger(arg, 1, 1_000_000);
+            } else if (arg.startsWith("--delta")) {
+                delta = VoltDBPrometheusAgent.extractArgBoolean(arg);
+            } else if (arg.startsWith("--counters")) {
+                counters = VoltDBPrometheusAgent.extractArgBoolean(arg);
+            } else if (arg.startsWith("--evictafter")) {
+                evictAfter = VoltDBPrometheusAgent.extractArgInteger(arg, 0, 1000);
+            } else if (arg.startsWith("--output")) {
+                output = VoltDBPrometheusAgent.extractArgString(arg);
+            } else {
+                System.err.println("Error: invalid parameter " + arg);
+                System.exit(1);
+            }
+        }
+        if (file == null) {
+            System.err.println("Error: --file must be given");
+            System.exit(1);
+        }
+        if (delta && counters) {
+            System.err.println("Error: can't specify both --delta and --counters.");
+            System.exit(1);
+        }
+
+        StatsReplay replay = null;
+        try {
+            replay = new StatsReplay(Paths.get(file));
+        } catch (IOException ex) {
+            System.err.println("Error: cannot read capture: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        VoltDBPrometheusMetricEngine engine = new VoltDBPrometheusMetricEngine("replay", 0, "", "", false, null);
+        engine.setIntervalMode(delta);
+        engine.setCounterMode(counters);
+        engine.setEvictAfter(evictAfter);
+        engine.setSupportedStats(EnumSet.allOf(SupportedStatsSelectors.class));
+
+        long started = System.nanoTime();
+        for (int pass = 0; pass < repeat; pass++) {
+            replay.rewind();
+            replay.replayInto(engine, speed);
+        }
+        long elapsed = System.nanoTime() - started;
+        System.out.printf("Replayed %d responses (%d rows) in %d collections in %d msec; %d skipped, %d failed%n",
+                          replay.m_responses, replay.m_rows, replay.m_collections, elapsed / 1_000_000,
+                          replay.m_skipped, replay.m_failed);
+        replay.close();
+
+        if (output != null) {
+            try (OutputStream out = Files.newOutputStream(Paths.get(output))) {
+                engine.render().get(ExpositionFormat.TEXT).writeTo(out);
+            }
+        }
+    }
+
+    /*
+     * Replays the capture from the current position into an engine,
+     * at 'speed' times the recorded pace (0 for no pacing).
+     */
+    private void replayInto(VoltDBPrometheusMetricEngine engine, int speed) throws IOException, InterruptedException {
+        Set<SupportedStatsSelectors> collection = EnumSet.noneOf(SupportedStatsSelectors.class);
+        long start = System.nanoTime();
+        long recorded = 0; // msec of recorded time since the first record
+        long last = Long.MIN_VALUE;
+        while (next()) {
+            SupportedStatsSelectors selector;
+            try {
+                selector = SupportedStatsSelectors.valueOf(m_selector);
+            } catch (IllegalArgumentException ex) {
+                m_skipped++;
+                continue;
+            }
+            if (last != Long.MIN_VALUE && m_timestamp > last) {
+                recorded += m_timestamp - last;
+            }
+            last = Math.max(last, m_timestamp);
+            if (speed > 0) {
+                long wait = recorded * 1_000_000 / speed - (System.nanoTime() - start);
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+            if (!collection.add(selector)) {
+                endCollection(engine);
+                collection.clear();
+                collection.add(selector);
+            }
+            if (engine.replayResponse(selector, m_tables, m_timestamp)) {
+                m_responses++;
+                for (VoltTable table : m_tables) {
+                    m_rows += table.getRowCount();
+                }
+            } else {
+                m_failed++;
+            }
+        }
+        if (!collection.isEmpty()) {
+            endCollection(engine);
+        }
+    }
+
+    private void endCollection(VoltDBPrometheusMetricEngine engine) {
+        engine.reportAgentStats();
+        engine.render();
+        m_collections++;
+    }
+}
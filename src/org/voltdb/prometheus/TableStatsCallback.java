@@ -5,8 +5,6 @@
 
 package org.voltdb.prometheus;
 
-import java.util.Map;
-
 import org.voltdb.StatsSource.StatsCommon;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
@@ -56,15 +54,16 @@ public class TableStatsCallback extends AbstractStatsProcedureCallback implement
     @Override
     public void processResult(VoltTable[] tables) {
         VoltTable table = tables[0];
-        while (table.advanceRow()) {
-            String hostname = table.getString(StatsCommon.HOSTNAME.name());
-            String partitionid = String.valueOf(table.getLong(Table.PARTITION_ID.name()));
-            String tablename = table.getString(Table.TABLE_NAME.name());
-            String type = table.getString(Table.TABLE_TYPE.name());
-
-            for (Map.Entry<String, Metric> e : metricMap.entrySet()) {
-                reportMetric(e.getValue(), table.getLong(e.getKey()), hostname, partitionid, tablename, type);
-            }
-        }
+        int hostnameCol = table.getColumnIndex(StatsCommon.HOSTNAME.name());
+        int partitionIdCol = table.getColumnIndex(Table.PARTITION_ID.name());
+        int tableNameCol = table.getColumnIndex(Table.TABLE_NAME.name());
+        int typeCol = table.getColumnIndex(Table.TABLE_TYPE.name());
+        compile(table);
+        reportRows(table, (row, labels) -> {
+            labels.set(0, row.getString(hostnameCol));
+            labels.set(1, row.getLong(partitionIdCol));
+            labels.set(2, row.getString(tableNameCol));
+            labels.set(3, row.getString(typeCol));
+        });
     }
 }
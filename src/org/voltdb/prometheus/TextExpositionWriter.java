@@ -0,0 +1,169 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Writes the Prometheus text format (version 0.0.4), or the
+ * OpenMetrics text format (version 1.0.0).
+ *
+ * The text format output matches that of TextFormat.write004 in
+ * the Prometheus client library.
+ *
+ * OpenMetrics differs in a few details: a counter family is named
+ * without the '_total' suffix that its samples carry, families may
+ * have a UNIT, help text escapes double-quotes, and label sets have
+ * no trailing comma. The '# EOF' line that ends an OpenMetrics
+ * exposition is not written here, since expositions may be merged;
+ * see Exposition.trailer.
+ */
+class TextExpositionWriter extends ExpositionWriter {
+
+    private static final String TOTAL = "_total";
+
+    private final boolean m_openMetrics;
+    private String m_sampleName;
+
+    TextExpositionWriter(ExpositionFormat format, int size) {
+        super(format, size);
+        m_openMetrics = (format == ExpositionFormat.OPENMETRICS);
+    }
+
+    @Override
+    protected void writeHeader(int n, String name, Type type, String help, String unit) {
+        m_headerStart[n] = m_out.length;
+        m_sampleName = name;
+        if (m_openMetrics) {
+            if (type == Type.COUNTER) {
+                if (name.endsWith(TOTAL)) {
+                    name = name.substring(0, name.length() - TOTAL.length());
+                } else {
+                    m_sampleName = name + TOTAL;
+                }
+            }
+            writeMetadata("TYPE", name, typeString(type));
+            if (unit != null && name.endsWith("_" + unit)) {
+                writeMetadata("UNIT", name, unit);
+            }
+            m_out.writeAscii("# HELP ");
+            m_out.writeString(name);
+            m_out.writeByte(' ');
+            m_out.writeEscaped(help, true);
+            m_out.writeByte('\n');
+        } else {
+            m_out.writeAscii("# HELP ");
+            m_out.writeString(name);
+            m_out.writeByte(' ');
+            m_out.writeEscaped(help, false);
+            m_out.writeByte('\n');
+            writeMetadata("TYPE", name, typeString(type));
+        }
+    }
+
+    private void writeMetadata(String keyword, String name, String value) {
+        m_out.writeAscii("# ");
+        m_out.writeAscii(keyword);
+        m_out.writeByte(' ');
+        m_out.writeString(name);
+        m_out.writeByte(' ');
+        m_out.writeString(value);
+        m_out.writeByte('\n');
+    }
+
+    @Override
+    public void value(int labelSet, double value) {
+        m_out.writeString(m_sampleName);
+        writeLabelSet(labelSet);
+        m_out.writeByte(' ');
+        m_out.writeDouble(value);
+        m_out.writeByte('\n');
+    }
+
+    @Override
+    public void histogram(int labelSet, HistogramBuckets buckets, double[] cumulative,
+                          double count, double sum) {
+        for (int i = 0; i < buckets.size(); i++) {
+            sample(labelSet, "_bucket", "le", buckets.label(i), cumulative[i]);
+        }
+        sample(labelSet, "_bucket", "le", "+Inf", count);
+        countAndSum(labelSet, count, sum);
+    }
+
+    @Override
+    public void summary(int labelSet, HistogramBuckets quantiles, double[] values,
+                        double count, double sum) {
+        for (int i = 0; i < quantiles.size(); i++) {
+            sample(labelSet, "", "quantile", quantiles.label(i), values[i]);
+        }
+        countAndSum(labelSet, count, sum);
+    }
+
+    private void countAndSum(int labelSet, double count, double sum) {
+        m_out.writeString(m_sampleName);
+        m_out.writeAscii("_count");
+        writeLabelSet(labelSet);
+        m_out.writeByte(' ');
+        m_out.writeDouble(count);
+        m_out.writeByte('\n');
+        m_out.writeString(m_sampleName);
+        m_out.writeAscii("_sum");
+        writeLabelSet(labelSet);
+        m_out.writeByte(' ');
+        m_out.writeDouble(sum);
+        m_out.writeByte('\n');
+    }
+
+    /*
+     * One sample of a histogram or summary: the series' label set
+     * with one more label ('le' or 'quantile') appended
+     */
+    private void sample(int labelSet, String suffix, String name, String label, double value) {
+        m_out.writeString(m_sampleName);
+        m_out.writeAscii(suffix);
+        if (labelSetLength(labelSet) == 0) {
+            m_out.writeByte('{');
+        } else {
+            writeLabelSet(labelSet, m_openMetrics ? 1 : 2); // closing brace, and comma
+            m_out.writeByte(',');
+        }
+        m_out.writeAscii(name);
+        m_out.writeAscii("=\"");
+        m_out.writeAscii(label);
+        m_out.writeAscii(m_openMetrics ? "\"} " : "\",} ");
+        m_out.writeDouble(value);
+        m_out.writeByte('\n');
+    }
+
+    @Override
+    protected void writeLabel(boolean first, String name, String value) {
+        m_labels.writeByte(first ? '{' : ',');
+        m_labels.writeString(name);
+        m_labels.writeAscii("=\"");
+        m_labels.writeEscaped(value, true);
+        m_labels.writeByte('"');
+    }
+
+    @Override
+    protected void closeLabelSet() {
+        m_labels.writeAscii(m_openMetrics ? "}" : ",}");
+    }
+
+    private String typeString(Type type) {
+        switch (type) {
+        case GAUGE:
+            return "gauge";
+        case COUNTER:
+            return "counter";
+        case SUMMARY:
+            return "summary";
+        case HISTOGRAM:
+            return "histogram";
+        default:
+            return m_openMetrics ? "unknown" : "untyped";
+        }
+    }
+}
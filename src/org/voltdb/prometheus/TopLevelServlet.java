@@ -6,6 +6,8 @@
 package org.voltdb.prometheus;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -14,18 +16,22 @@ import javax.servlet.http.HttpServletResponse;
 
 class TopLevelServlet extends HttpServlet {
 
-    private final String serverList;
-    private final int port;
+    private final List<String> descriptions;
 
-    public TopLevelServlet(String serverList, int port) {
-        this.serverList = serverList;
-        this.port = port;
+    /**
+     * @param descriptions - one line per cluster being served
+     */
+    public TopLevelServlet(List<String> descriptions) {
+        this.descriptions = descriptions;
     }
 
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
             throws ServletException, IOException {
-        resp.getWriter().println(String.format("VoltDB Prometheus Agent for %s port %s",
-                                               serverList, port));
+        PrintWriter writer = resp.getWriter();
+        writer.println("VoltDB Prometheus Agent");
+        for (String desc : descriptions) {
+            writer.println(desc);
+        }
     }
 }
@@ -6,13 +6,27 @@
 package org.voltdb.prometheus;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.json_voltpatches.JSONArray;
+import org.json_voltpatches.JSONException;
+import org.json_voltpatches.JSONObject;
 import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
 import org.voltdb.utils.MiscUtils;
 
@@ -24,121 +38,301 @@ public class VoltDBPrometheusAgent {
     public static void main(String[] args) {
 
         // Initialize parameter defaults
-        String serverList = "localhost";
-        int port = DEFAULT_VOLTDB_PORT;
-        String user = ""; // for connection to VoltDB
-        String password = ""; // likewise
+        ClusterConfig cluster = new ClusterConfig();
+        cluster.port = DEFAULT_VOLTDB_PORT;
         String credsFile = null; // alternative for user+password
-        boolean delta = false;
-        boolean sslEnabled = false;
-        String sslConfigFile = null;
         int webserverPort = DEFAULT_WEBSERVER_PORT;
         String statsList = null;
         String skipStatsList = null;
+        int pollInterval = 0; // seconds, 0 means poll on each request
+        String selectorIntervalList = null;
+        String configFile = null; // multiple clusters
+        boolean clusterArgs = false; // any per-cluster argument seen
 
         // Parse out parameters
         for (String arg : args) {
-            if (arg.startsWith("--servers")) {
-                serverList = extractArgString(arg);
-            } else if (arg.startsWith("--port")) {
-                port = extractArgInteger(arg, 1, 65535);
-            } else if (arg.startsWith("--webserverport")) {
+            if (arg.startsWith("--webserverport")) {
                 webserverPort = extractArgInteger(arg, 1, 65535);
-            } else if (arg.startsWith("--user")) {
-                user = extractArgString(arg);
-            } else if (arg.startsWith("--password")) {
-                password = extractArgString(arg);
-            } else if (arg.startsWith("--credentials")) {
-                credsFile = extractArgString(arg);
-            } else if (arg.startsWith("--skipstats")) {
-                skipStatsList = extractArgString(arg);
-            } else if (arg.startsWith("--stats")) {
-                statsList = extractArgString(arg);
-            } else if (arg.startsWith("--delta")) {
-                delta = extractArgBoolean(arg);
-            } else if (arg.startsWith("--ssl")) {
-                sslConfigFile = extractOptionalArgString(arg);
-                sslEnabled = true;
+            } else if (arg.startsWith("--pollinterval")) {
+                pollInterval = extractArgInteger(arg, 0, 3600);
+            } else if (arg.startsWith("--config")) {
+                configFile = extractArgString(arg);
             } else {
-                System.err.println("Error: invalid parameter " + arg);
+                clusterArgs = true;
+                if (arg.startsWith("--servers")) {
+                    cluster.servers = extractArgString(arg);
+                } else if (arg.startsWith("--port")) {
+                    cluster.port = extractArgInteger(arg, 1, 65535);
+                } else if (arg.startsWith("--user")) {
+                    cluster.user = extractArgString(arg);
+                } else if (arg.startsWith("--password")) {
+                    cluster.password = extractArgString(arg);
+                } else if (arg.startsWith("--credentials")) {
+                    credsFile = extractArgString(arg);
+                } else if (arg.startsWith("--skipstats")) {
+                    skipStatsList = extractArgString(arg);
+                } else if (arg.startsWith("--stats")) {
+                    statsList = extractArgString(arg);
+                } else if (arg.startsWith("--selectorintervals")) {
+                    selectorIntervalList = extractArgString(arg);
+                } else if (arg.startsWith("--selectortimeout")) {
+                    cluster.selectorTimeout = extractArgInteger(arg, 0, 3600) * 1000L;
+                } else if (arg.startsWith("--collectiontimeout")) {
+                    cluster.collectionTimeout = extractArgInteger(arg, 0, 3600) * 1000L;
+                } else if (arg.startsWith("--evictafter")) {
+                    cluster.evictAfter = extractArgInteger(arg, 0, 1000);
+                } else if (arg.startsWith("--latencybuckets")) {
+                    cluster.latencyBuckets = extractArgBuckets(arg);
+                } else if (arg.startsWith("--proberate")) {
+                    cluster.probeRate = extractArgInteger(arg, 0, 100);
+                } else if (arg.startsWith("--probeprocedure")) {
+                    setProbeProcedure(cluster, extractArgString(arg));
+                } else if (arg.startsWith("--delta")) {
+                    cluster.delta = extractArgBoolean(arg);
+                } else if (arg.startsWith("--counters")) {
+                    cluster.counters = extractArgBoolean(arg);
+                } else if (arg.startsWith("--decodethreads")) {
+                    cluster.decodeThreads = extractArgInteger(arg, 0, 64);
+                } else if (arg.startsWith("--capture")) {
+                    cluster.captureFile = extractArgString(arg);
+                } else if (arg.startsWith("--ssl")) {
+                    cluster.sslConfigFile = extractOptionalArgString(arg);
+                    cluster.sslEnabled = true;
+                } else {
+                    System.err.println("Error: invalid parameter " + arg);
+                    System.exit(1);
+                }
+            }
+        }
+
+        List<ClusterConfig> clusters;
+        if (configFile != null) {
+            if (clusterArgs) {
+                System.err.println("Error: with --config, only --webserverport and --pollinterval may be given.");
                 System.exit(1);
             }
+            clusters = readConfigFile(configFile, pollInterval);
+        } else {
+            cluster.statsSet = parseStatsSelectors(statsList, skipStatsList);
+            cluster.pollPeriods = parseSelectorIntervals(selectorIntervalList);
+            cluster.pollInterval = pollInterval * 1000L;
+            checkCounterMode(cluster);
+            resolveCredentials(cluster, credsFile);
+            checkSslConfig(cluster);
+            clusters = Collections.singletonList(cluster);
         }
 
-        if (statsList != null && skipStatsList != null) {
-            System.err.println("Error: can't set both --stats and --skipstats.");
+        List<ClusterMetricsSource> sources = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        for (ClusterConfig c : clusters) {
+            String desc = c.describe();
+            System.out.printf("Serving %s%s%n", (c.name != null ? "cluster " + c.name + ": " : ""), desc);
+            if (c.pollInterval > 0) {
+                System.out.printf("Polling VoltDB every %d seconds%n", c.pollInterval / 1000);
+            }
+            for (Map.Entry<SupportedStatsSelectors, Long> ent : c.pollPeriods.entrySet()) {
+                System.out.printf("Polling %s at most every %d seconds%n", ent.getKey(), ent.getValue() / 1000);
+            }
+            if (c.probeRate > 0) {
+                System.out.printf("Probing latency with %s %d times per second%n", c.probeProcedure, c.probeRate);
+            }
+            if (c.captureFile != null) {
+                System.out.printf("Capturing @Statistics responses to %s%n", c.captureFile);
+            }
+            descriptions.add(c.name != null ? String.format("%s (/metrics/%s): %s", c.name, c.name, desc) : desc);
+            try {
+                sources.add(c.createSource());
+            } catch (IOException ex) {
+                System.err.println("Error: cannot open capture file " + c.captureFile + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        System.out.printf("Listening for connections on port %d%n%n", webserverPort);
+        Server server = new Server(webserverPort);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        server.setHandler(context);
+
+        context.addServlet(new ServletHolder(new TopLevelServlet(descriptions)), "/");
+        ServletHolder metricsHolder = new ServletHolder(new PrometheusServlet(sources));
+        metricsHolder.setAsyncSupported(true);
+        context.addServlet(metricsHolder, "/metrics");
+        context.addServlet(metricsHolder, "/metrics/*");
+
+        // Start the webserver.
+        try {
+            server.start();
+            server.join();
+        } catch (Exception ex) {
+            System.err.println("Error: UNEXPECTED EXCEPTION");
+            ex.printStackTrace();
             System.exit(1);
         }
+    }
 
-        Set<SupportedStatsSelectors> statsSet = parseStatsSelectors(statsList, skipStatsList);
-        if (statsSet == null || statsSet.isEmpty()) {
-            System.err.println("Error: no statistics to poll.");
+    /*
+     * Reads JSON document describing multiple clusters:
+     *
+     *   { "clusters": [ { "name": "east", "servers": "a,b", "port": 21211, ... }, ... ] }
+     *
+     * Cluster properties have the same names and meanings as the
+     * corresponding command-line options. Each cluster needs a
+     * unique name, used in the 'cluster' label.
+     */
+    private static List<ClusterConfig> readConfigFile(String configFile, int defaultPollInterval) {
+        List<ClusterConfig> clusters = new ArrayList<>();
+        try {
+            String text = new String(Files.readAllBytes(Paths.get(configFile)), StandardCharsets.UTF_8);
+            JSONArray array = new JSONObject(text).getJSONArray("clusters");
+            Set<String> names = new HashSet<>();
+            Set<Path> captures = new HashSet<>();
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject obj = array.getJSONObject(i);
+                ClusterConfig c = new ClusterConfig();
+                c.name = obj.getString("name");
+                if (!c.name.matches("[A-Za-z0-9_.-]+") || !names.add(c.name)) {
+                    System.err.println("Error: cluster names must be unique and use only [A-Za-z0-9_.-]: " + c.name);
+                    System.exit(1);
+                }
+                c.servers = obj.optString("servers", c.servers);
+                c.port = obj.optInt("port", DEFAULT_VOLTDB_PORT);
+                c.user = obj.optString("user", c.user);
+                c.password = obj.optString("password", c.password);
+                if (obj.has("ssl")) {
+                    Object ssl = obj.get("ssl");
+                    if (ssl instanceof Boolean) {
+                        c.sslEnabled = (Boolean) ssl;
+                    } else {
+                        c.sslEnabled = true;
+                        c.sslConfigFile = ssl.toString();
+                    }
+                }
+                c.delta = obj.optBoolean("delta", false);
+                c.counters = obj.optBoolean("counters", false);
+                checkCounterMode(c);
+                String statsList = obj.optString("stats", null);
+                String skipStatsList = obj.optString("skipstats", null);
+                c.statsSet = parseStatsSelectors(statsList, skipStatsList);
+                c.pollPeriods = parseSelectorIntervals(obj.optString("selectorintervals", null));
+                c.pollInterval = obj.optInt("pollinterval", defaultPollInterval) * 1000L;
+                c.selectorTimeout = obj.optLong("selectortimeout", c.selectorTimeout / 1000) * 1000L;
+                c.collectionTimeout = obj.optLong("collectiontimeout", c.collectionTimeout / 1000) * 1000L;
+                c.evictAfter = obj.optInt("evictafter", c.evictAfter);
+                String latencyBuckets = obj.optString("latencybuckets", null);
+                if (latencyBuckets != null) {
+                    c.latencyBuckets = extractArgBuckets("latencybuckets=" + latencyBuckets);
+                }
+                c.probeRate = obj.optInt("proberate", c.probeRate);
+                if (c.probeRate < 0 || c.probeRate > 100) {
+                    System.err.println("Error: out-of-range integer in proberate for cluster " + c.name);
+                    System.exit(1);
+                }
+                String probeProcedure = obj.optString("probeprocedure", null);
+                if (probeProcedure != null) {
+                    setProbeProcedure(c, probeProcedure);
+                }
+                c.decodeThreads = obj.optInt("decodethreads", c.decodeThreads);
+                if (c.decodeThreads < 0 || c.decodeThreads > 64) {
+                    System.err.println("Error: out-of-range integer in decodethreads for cluster " + c.name);
+                    System.exit(1);
+                }
+                c.captureFile = obj.optString("capture", null);
+                if (c.captureFile != null && !captures.add(Paths.get(c.captureFile).toAbsolutePath().normalize())) {
+                    System.err.println("Error: clusters must not share a capture file: " + c.captureFile);
+                    System.exit(1);
+                }
+                resolveCredentials(c, obj.optString("credentials", null));
+                checkSslConfig(c);
+                clusters.add(c);
+            }
+        }
+        catch (IOException ex) {
+            System.err.println("Error: cannot read configuration file " + configFile);
+            System.exit(1);
+        }
+        catch (JSONException ex) {
+            System.err.println("Error: invalid configuration file " + configFile + ": " + ex.getMessage());
             System.exit(1);
         }
+        if (clusters.isEmpty()) {
+            System.err.println("Error: no clusters in configuration file " + configFile);
+            System.exit(1);
+        }
+        return clusters;
+    }
 
+    /*
+     * Credentials from file, or if not given explicitly, from
+     * the environment.
+     */
+    private static void resolveCredentials(ClusterConfig c, String credsFile) {
         if (credsFile != null) {
-            if (!user.isEmpty() || !password.isEmpty()) {
+            if (!c.user.isEmpty() || !c.password.isEmpty()) {
                 System.err.println("Error: can't specify --credentials with --user or --password.");
                 System.exit(1);
             }
             try {
                 Properties props = MiscUtils.readPropertiesFromCredentials(credsFile);
-                user = props.getProperty("username");
-                password = props.getProperty("password");
+                c.user = props.getProperty("username");
+                c.password = props.getProperty("password");
             }
             catch (Exception ex) {
                 System.err.println("Error: cannot read credentials file " + credsFile);
                 System.exit(1);
             }
-            if (user == null || user.isEmpty()) {
+            if (c.user == null || c.user.isEmpty()) {
                 System.err.println("Error: 'username' not found in credentials file " + credsFile);
                 System.exit(1);
             }
-            if (password == null) {
-                password = "";
+            if (c.password == null) {
+                c.password = "";
             }
         }
 
-        if (user.isEmpty() && password.isEmpty()) {
+        if (c.user.isEmpty() && c.password.isEmpty()) {
             String envUser = System.getenv("VOLTDB_USERNAME");
             String envPwd = System.getenv("VOLTDB_PASSWORD");
             if (envUser != null && !envUser.isEmpty()) {
-                user = envUser;
-                password = envPwd != null ? envPwd : "";
+                c.user = envUser;
+                c.password = envPwd != null ? envPwd : "";
                 System.out.println("Using VoltDB credentials from environment variables");
             }
         }
+    }
 
-        if (sslConfigFile != null) {
-            File sslTemp = new File(sslConfigFile);
-            if (!(sslTemp.isFile() && sslTemp.canRead())) {
-                System.err.println("Error: cannot read SSL configuration file " + sslConfigFile);
-                System.exit(1);
-            }
+    private static void checkCounterMode(ClusterConfig c) {
+        if (c.delta && c.counters) {
+            System.err.println("Error: can't specify both --delta and --counters.");
+            System.exit(1);
         }
+    }
 
-        System.out.printf("Serving %s%s metrics%nFrom VoltDB at %s port %d %s%n",
-                          statsSet, (delta ? " delta" : ""),
-                          serverList, port, sslEnabled ? "(SSL enabled)" : "");
-
-        System.out.printf("Listening for connections on port %d%n%n", webserverPort);
-        Server server = new Server(webserverPort);
-        ServletContextHandler context = new ServletContextHandler();
-        context.setContextPath("/");
-        server.setHandler(context);
-
-        context.addServlet(new ServletHolder(new TopLevelServlet(serverList, port)), "/");
-        context.addServlet(new ServletHolder(new PrometheusServlet(serverList, port, user, password, statsSet, delta, sslEnabled, sslConfigFile)), "/metrics");
-
-        // Start the webserver.
-        try {
-            server.start();
-            server.join();
-        } catch (Exception ex) {
-            System.err.println("Error: UNEXPECTED EXCEPTION");
-            ex.printStackTrace();
+    /*
+     * Probe procedure is given as NAME or NAME,PARAM,...; parameters
+     * are passed as strings, for VoltDB to convert.
+     */
+    private static void setProbeProcedure(ClusterConfig c, String spec) {
+        String[] parts = spec.split(",", -1);
+        c.probeProcedure = parts[0].trim();
+        if (c.probeProcedure.isEmpty()) {
+            System.err.println("Error: missing procedure name in probe procedure " + spec);
             System.exit(1);
         }
+        c.probeParams = new String[parts.length - 1];
+        for (int i = 1; i < parts.length; i++) {
+            c.probeParams[i - 1] = parts[i].trim();
+        }
+    }
+
+    private static void checkSslConfig(ClusterConfig c) {
+        if (c.sslConfigFile != null) {
+            File sslTemp = new File(c.sslConfigFile);
+            if (!(sslTemp.isFile() && sslTemp.canRead())) {
+                System.err.println("Error: cannot read SSL configuration file " + c.sslConfigFile);
+                System.exit(1);
+            }
+        }
     }
 
     private static String extractOptionalArgString(String arg) {
@@ -149,7 +343,7 @@ public class VoltDBPrometheusAgent {
         }
     }
 
-    private static String extractArgString(String arg) {
+    static String extractArgString(String arg) {
         String[] splitStrings = arg.split("=", 2);
         if (splitStrings[0].isEmpty()) {
             System.err.println("Error: invalid parameter value " + arg);
@@ -162,7 +356,7 @@ public class VoltDBPrometheusAgent {
         return splitStrings[1];
     }
 
-    private static int extractArgInteger(String arg, int min, int max) {
+    static int extractArgInteger(String arg, int min, int max) {
         String val = extractArgString(arg);
         int n = -1;
         try {
@@ -178,7 +372,19 @@ public class VoltDBPrometheusAgent {
         return n;
     }
 
-    private static boolean extractArgBoolean(String arg) {
+    private static HistogramBuckets extractArgBuckets(String arg) {
+        String val = extractArgString(arg);
+        HistogramBuckets buckets = null;
+        try {
+            buckets = HistogramBuckets.parse(val);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage() + " in " + arg);
+            System.exit(1);
+        }
+        return buckets;
+    }
+
+    static boolean extractArgBoolean(String arg) {
         String val = extractArgString(arg);
         boolean b = false;
         if (val.equalsIgnoreCase("true")) {
@@ -192,14 +398,23 @@ public class VoltDBPrometheusAgent {
     }
 
     private static Set<SupportedStatsSelectors> parseStatsSelectors(String allowedStatsList, String skipStatsList) {
+        if (allowedStatsList != null && skipStatsList != null) {
+            System.err.println("Error: can't set both --stats and --skipstats.");
+            System.exit(1);
+        }
         Set<SupportedStatsSelectors> allstats = EnumSet.allOf(SupportedStatsSelectors.class);
+        // LATENCY_HISTOGRAM is polled only if named in --stats
+        Set<SupportedStatsSelectors> statsSet = EnumSet.complementOf(EnumSet.of(SupportedStatsSelectors.LATENCY_HISTOGRAM));
         if (allowedStatsList != null) {
-            return validateStats(allowedStatsList, allstats);
+            statsSet = validateStats(allowedStatsList, allstats);
         } else if (skipStatsList != null) {
-            allstats.removeAll(validateStats(skipStatsList, allstats));
-            return allstats; // which is no longer all stats
+            statsSet.removeAll(validateStats(skipStatsList, allstats));
         }
-        return allstats;
+        if (statsSet.isEmpty()) {
+            System.err.println("Error: no statistics to poll.");
+            System.exit(1);
+        }
+        return statsSet;
     }
 
     private static Set<SupportedStatsSelectors> validateStats(String statsList, Set<SupportedStatsSelectors> allstats) {
@@ -220,4 +435,41 @@ public class VoltDBPrometheusAgent {
         }
         return sanitized;
     }
+
+    /*
+     * Parses a list like 'TABLE:60,INDEX:60,LATENCY:5', giving polling
+     * periods in seconds. Result map values are in milliseconds.
+     */
+    private static Map<SupportedStatsSelectors, Long> parseSelectorIntervals(String intervalList) {
+        Map<SupportedStatsSelectors, Long> periods = new EnumMap<>(SupportedStatsSelectors.class);
+        if (intervalList == null) {
+            return periods;
+        }
+        for (String s : intervalList.split(",")) {
+            String[] parts = s.trim().split(":", 2);
+            if (parts.length != 2) {
+                System.err.println("Error: expected SELECTOR:SECONDS in --selectorintervals, found " + s);
+                System.exit(1);
+            }
+            SupportedStatsSelectors selector = null;
+            try {
+                selector = SupportedStatsSelectors.valueOf(parts[0].trim());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: unsupported statistics " + parts[0].trim());
+                System.exit(1);
+            }
+            int secs = -1;
+            try {
+                secs = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException ex) {
+                // checked below
+            }
+            if (secs < 1 || secs > 3600) {
+                System.err.println("Error: invalid polling interval for " + selector + " in --selectorintervals");
+                System.exit(1);
+            }
+            periods.put(selector, secs * 1000L);
+        }
+        return periods;
+    }
 }
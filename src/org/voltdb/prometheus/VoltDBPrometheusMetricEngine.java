@@ -5,17 +5,35 @@
 
 package org.voltdb.prometheus;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.voltcore.logging.VoltLogger;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.NoConnectionsException;
+import org.voltdb.client.ProcedureCallback;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 
 public class VoltDBPrometheusMetricEngine {
@@ -49,6 +67,7 @@ public class VoltDBPrometheusMetricEngine {
         QUEUE,
         QUEUEPRIORITY,
         TABLE,
+        LATENCY_HISTOGRAM, // polled by the agent only if asked for
         ;
     }
 
@@ -82,6 +101,7 @@ public class VoltDBPrometheusMetricEngine {
         addStats(SupportedStatsSelectors.INITIATOR,     InitiatorStatsCallback.class);
         addStats(SupportedStatsSelectors.IOSTATS,       IOStatsCallback.class);
         addStats(SupportedStatsSelectors.LATENCY,       LatencyStatsCallback.class);
+        addStats(SupportedStatsSelectors.LATENCY_HISTOGRAM, LatencyHistogramStatsCallback.class);
         addStats(SupportedStatsSelectors.LIVECLIENTS,   LiveClientsStatsCallback.class);
         addStats(SupportedStatsSelectors.MEMORY,        MemoryStatsCallback.class);
         addStats(SupportedStatsSelectors.PROCEDURE,     ProcedureStatsCallback.class);
@@ -91,14 +111,56 @@ public class VoltDBPrometheusMetricEngine {
     }
 
     /**
-     * We only use Gauges to store metrics. Counters might seem plausible, but there's
-     * no 'set' method, so there is no way to transfer the current value from VoltDB
-     * statistics. Messing with arithmetic will work some of the time, but not if
-     * the stats have been reset: Counters cannot be decreased.
+     * VoltDB metrics are held in SeriesStore objects, one per statistics
+     * class and set of label names, rather than in Gauges; see SeriesStore
+     * for the rationale. All values are exported as gauges, since the
+     * current value is simply transferred from VoltDB statistics, or
+     * in delta mode, the difference between polls. The exceptions are
+     * counter mode, in which cumulative VoltDB counts are exported as
+     * counters, and histograms and summaries, which are cumulative in
+     * any mode.
      *
-     * The map is keyed on the full metric name as known to Prometheus.
+     * The map is keyed on the full metric name as known to Prometheus,
+     * and is used to detect duplicate registration.
      */
-    private final Map<String,Gauge> m_gaugeMap = new HashMap<>();
+    private final List<SeriesStore> m_stores = new ArrayList<>();
+    private final Map<String,SeriesStore> m_metricMap = new HashMap<>();
+
+    /**
+     * The statistics selector whose callback created each store, so
+     * that a scrape can be limited to some selectors or metrics. Set
+     * during initialization only.
+     */
+    private final Map<SeriesStore,SupportedStatsSelectors> m_storeSelectors = new HashMap<>();
+    private SupportedStatsSelectors m_initSelector;
+
+    /**
+     * Each engine has its own collectors for the agent's own metrics,
+     * so that several engines (one per VoltDB cluster) can coexist
+     * in one agent. They are kept in the order created, and rendered
+     * in that order (a CollectorRegistry has no fixed order), so that
+     * identical engines render identical output.
+     */
+    private final List<Collector> m_agentCollectors = new ArrayList<>();
+
+    /**
+     * Renders each collection, one writer per exposition format;
+     * buffers are reused from one collection to the next.
+     */
+    private final EnumMap<ExpositionFormat, ExpositionWriter> m_writers =
+        new EnumMap<>(ExpositionFormat.class);
+
+    /**
+     * Formats rendered for each collection: the text format, and
+     * any other format that a scrape has asked for. Copy on write.
+     */
+    private volatile Set<ExpositionFormat> m_formats = EnumSet.of(ExpositionFormat.TEXT);
+
+    /**
+     * Value for the 'cluster' label added to all metrics, or
+     * null if no such label is wanted.
+     */
+    private String m_clusterName = null;
 
     /**
      * Values needed for VoltDB connection setup.
@@ -126,17 +188,136 @@ public class VoltDBPrometheusMetricEngine {
      * VoltDB client, connected and disconnected as needed during
      * statistics gathering.
      */
-    private Client m_client = null;
+    private volatile Client m_client = null;
+
+    /**
+     * Count of stats written this pass. Written by decoder threads.
+     */
+    private final LongAdder m_statCount = new LongAdder();
+
+    /**
+     * Delta mode: cumulative counts are reported as the change since
+     * the previous poll, together with a per-second rate. We always
+     * ask VoltDB for cumulative values ('interval' argument 0) and
+     * compute the differences here; interval mode (1) would reset the
+     * counters seen by every other @Statistics user on the cluster.
+     */
+    private boolean m_deltaMode = false;
+    private static final int STATS_INTERVAL = 0;
+
+    /**
+     * Counter mode: cumulative counts are exported as Prometheus
+     * counters, named with a '_total' suffix, and kept monotonic
+     * across server-side resets, so that rate() can be used on them
+     * directly. Not compatible with delta mode.
+     */
+    private boolean m_counterMode = false;
+
+    /**
+     * Bucket bounds, in seconds, for the latency histogram
+     */
+    private HistogramBuckets m_latencyBuckets = HistogramBuckets.DEFAULT_LATENCY;
+
+    /**
+     * Statistics of our VoltDB client, exported as agent metrics.
+     * Also the client's status listener. Set up with the callbacks.
+     */
+    private ClientStatsReporter m_clientStats;
 
     /**
-     * Count of stats written this pass..
+     * Optional client-side latency prober; null if not wanted.
      */
-    private int m_statCount = 0;
+    private LatencyProber m_prober;
+
+    /**
+     * The agent's own collection and rendering cost,
+     * and JVM figures; see AgentStats.
+     */
+    private AgentStats m_agentStats;
+
+    /**
+     * Optional capture of raw responses; null if not wanted.
+     */
+    private StatsCapture m_capture;
+
+    /**
+     * Responses are handed off by the VoltDB client's network thread
+     * to this pool, so that decoding one large response does not hold
+     * up delivery of the others; large result tables are also decoded
+     * here in parallel (see AbstractStatsProcedureCallback.reportRows).
+     * The pool has a fixed number of threads, and at most one response
+     * per selector is outstanding, apart from late ones that will be
+     * discarded. Created by setSupportedStats; null to decode on the
+     * network thread.
+     */
+    public static final int DEFAULT_DECODE_THREADS = 4;
+    private int m_decodeThreads = DEFAULT_DECODE_THREADS;
+    private ForkJoinPool m_decoders;
+
+    /**
+     * Optional per-selector polling periods, in msec. Selectors not
+     * in this map are polled on every call to gatherMetrics. Between
+     * polls, the values from the last successful poll continue to be
+     * reported.
+     */
+    private final EnumMap<SupportedStatsSelectors, Long> m_pollPeriods =
+        new EnumMap<>(SupportedStatsSelectors.class);
+
+    /**
+     * Time of last successful poll of each selector (wall clock msec).
+     */
+    private final EnumMap<SupportedStatsSelectors, Long> m_lastPolled =
+        new EnumMap<>(SupportedStatsSelectors.class);
+
+    /**
+     * Deadline for each @Statistics call, and overall budget for one
+     * gatherMetrics, both in msec. Zero means no limit. Selectors that
+     * miss the deadline keep their previous values, and are marked
+     * as stale.
+     */
+    public static final long DEFAULT_SELECTOR_TIMEOUT = 5_000;
+    public static final long DEFAULT_COLLECTION_TIMEOUT = 8_000;
+    private long m_selectorTimeout = DEFAULT_SELECTOR_TIMEOUT;
+    private long m_collectionTimeout = DEFAULT_COLLECTION_TIMEOUT;
+
+    /**
+     * Per-selector staleness reporting:
+     *
+     *  voltdb_agent_selector_stale
+     *  voltdb_agent_selector_last_success_timestamp_seconds
+     *
+     * Labels:
+     *
+     *  selector
+     */
+    private final Gauge m_staleGauge;
+    private final Gauge m_lastSuccessGauge;
+
+    /**
+     * Health of each selector, so that one failing selector neither
+     * affects the others nor causes the shared client to be dropped.
+     * Exported as voltdb_agent_selector_state: 0 healthy, 1 quarantined,
+     * 2 disabled.
+     */
+    private final EnumMap<SupportedStatsSelectors, SelectorHealth> m_health =
+        new EnumMap<>(SupportedStatsSelectors.class);
+    private final Gauge m_stateGauge;
 
     /**
-     * 'Interval' argument for @Statistics call, 0 or 1
+     * Series (label combinations) that have disappeared from a selector's
+     * results, for this many successful polls of that selector, are
+     * removed rather than exported with frozen values. Zero means
+     * never remove. Removals are counted in:
+     *
+     *  voltdb_agent_series_evicted_total
+     *
+     * Labels:
+     *
+     *  selector
      */
-    private int m_interval = 0;
+    public static final int DEFAULT_EVICT_AFTER = 3;
+    private int m_evictAfter = DEFAULT_EVICT_AFTER;
+    private final Counter m_evictedCounter;
 
     /**
      * Create an agent for metrics reporting. This is called for each agent
@@ -150,13 +331,154 @@ public class VoltDBPrometheusMetricEngine {
         m_password = password;
         m_sslEnabled = sslEnabled;
         m_sslConfigFile = sslConfigFile;
+        m_staleGauge = Gauge.build()
+                            .name("voltdb_agent_selector_stale")
+                            .labelNames("selector")
+                            .help("1 if the values for a statistics selector are left over from an earlier collection")
+                            .create();
+        m_lastSuccessGauge = Gauge.build()
+                                  .name("voltdb_agent_selector_last_success_timestamp_seconds")
+                                  .labelNames("selector")
+                                  .help("Time of the last successful collection of a statistics selector")
+                                  .create();
+        m_stateGauge = Gauge.build()
+                            .name("voltdb_agent_selector_state")
+                            .labelNames("selector")
+                            .help("State of a statistics selector: 0 healthy, 1 quarantined after failure, 2 disabled as unsupported")
+                            .create();
+        m_evictedCounter = Counter.build()
+                                  .name("voltdb_agent_series_evicted_total")
+                                  .labelNames("selector")
+                                  .help("Number of series removed after disappearing from the results of a statistics selector")
+                                  .create();
+        Collections.addAll(m_agentCollectors, m_staleGauge, m_lastSuccessGauge, m_stateGauge, m_evictedCounter);
     }
 
     /**
-     * Initialization: sets 'interval' mode
+     * Initialization: sets delta mode. Must precede setSupportedStats.
      */
     public void setIntervalMode(boolean interval) {
-        m_interval = (interval ? 1 : 0);
+        m_deltaMode = interval;
+    }
+
+    /**
+     * Initialization: sets counter mode. Must precede setSupportedStats.
+     */
+    public void setCounterMode(boolean counters) {
+        m_counterMode = counters;
+    }
+
+    /**
+     * Initialization: sets latency histogram buckets. Must precede
+     * setSupportedStats.
+     */
+    public void setLatencyBuckets(HistogramBuckets buckets) {
+        m_latencyBuckets = buckets;
+    }
+
+    public HistogramBuckets getLatencyBuckets() {
+        return m_latencyBuckets;
+    }
+
+    /**
+     * Initialization: sets up a latency prober, calling a procedure
+     * (@Ping or some cheap read-only procedure) 'rate' times per
+     * second. Must follow setLatencyBuckets. The prober runs from
+     * startProbe to stopProbe.
+     */
+    public void setProbe(String procedure, String[] params, int rate) {
+        m_prober = new LatencyProber(this, procedure, params, rate);
+    }
+
+    public void startProbe() {
+        if (m_prober != null) {
+            m_prober.start();
+        }
+    }
+
+    public void stopProbe() {
+        if (m_prober != null) {
+            m_prober.stop();
+        }
+    }
+
+    /**
+     * Initialization: sets cluster name, which is added to all
+     * metrics as the value of a 'cluster' label.
+     */
+    public void setClusterName(String clusterName) {
+        m_clusterName = clusterName;
+    }
+
+    public String getClusterName() {
+        return m_clusterName;
+    }
+
+    /**
+     * Initialization: sets per-selector deadline and overall
+     * collection budget, in msec; zero means no limit.
+     */
+    public void setTimeouts(long selectorTimeout, long collectionTimeout) {
+        m_selectorTimeout = selectorTimeout;
+        m_collectionTimeout = collectionTimeout;
+    }
+
+    /**
+     * Initialization: sets number of polls for which a series
+     * may be missing before it is removed; zero means never.
+     */
+    public void setEvictAfter(int cycles) {
+        m_evictAfter = cycles;
+    }
+
+    /**
+     * Initialization: sets polling period (msec) for individual
+     * statistics selectors.
+     */
+    public void setPollPeriods(Map<SupportedStatsSelectors, Long> periods) {
+        m_pollPeriods.putAll(periods);
+    }
+
+    /**
+     * Initialization: sets the number of threads that decode
+     * responses; zero to decode on the VoltDB client's thread.
+     * Must precede setSupportedStats.
+     */
+    public void setDecodeThreads(int threads) {
+        m_decodeThreads = threads;
+    }
+
+    private static ForkJoinPool createDecoders(int threads) {
+        if (threads == 0) {
+            return null;
+        }
+        AtomicInteger count = new AtomicInteger();
+        return new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("VoltDB statistics decoder " + count.getAndIncrement());
+            return t;
+        }, null, false);
+    }
+
+    /**
+     * The pool in which large tables may be decoded in parallel, or
+     * null if there is no pool, or if it could run only one thread at
+     * a time, in which case splitting a table is pure overhead.
+     */
+    ForkJoinPool getParallelDecoders() {
+        ForkJoinPool decoders = m_decoders;
+        if (decoders == null || decoders.getParallelism() < 2 || Runtime.getRuntime().availableProcessors() < 2) {
+            return null;
+        }
+        return decoders;
+    }
+
+    /**
+     * Initialization: records every response processed in a capture
+     * file (see StatsCapture). Must precede setSupportedStats.
+     */
+    void setCapture(StatsCapture capture) {
+        m_capture = capture;
     }
 
     /**
@@ -164,10 +486,50 @@ public class VoltDBPrometheusMetricEngine {
      * callback in turn will call us multiple times at registerMetric.
      */
     public void setSupportedStats(Set<SupportedStatsSelectors> statsSet) {
+        m_decoders = createDecoders(m_decodeThreads);
         for (SupportedStatsSelectors selector : statsSet) {
             logDebug("Initializing: %s", selector);
-            m_callbackMap.put(selector, makeCallback(selector));
+            m_initSelector = selector;
+            AbstractStatsProcedureCallback cb = makeCallback(selector);
+            if (m_capture != null) {
+                cb.setCapture(m_capture, selector.name());
+            }
+            m_callbackMap.put(selector, cb);
+            m_health.put(selector, new SelectorHealth(selector, m_servers));
         }
+        m_initSelector = null;
+        m_clientStats = new ClientStatsReporter(this);
+        m_agentStats = new AgentStats(this);
+    }
+
+    /**
+     * Selectors that we poll.
+     */
+    public Set<SupportedStatsSelectors> getSelectors() {
+        return Collections.unmodifiableSet(m_callbackMap.keySet());
+    }
+
+    /**
+     * The callback for a selector that we poll, or null.
+     */
+    AbstractStatsProcedureCallback getCallback(SupportedStatsSelectors selector) {
+        return m_callbackMap.get(selector);
+    }
+
+    /**
+     * The selector that provides a metric, or null if the name
+     * is not one of our VoltDB metrics.
+     */
+    public SupportedStatsSelectors selectorOf(String metricName) {
+        SeriesStore store = m_metricMap.get(metricName);
+        return (store != null ? m_storeSelectors.get(store) : null);
+    }
+
+    /**
+     * The callback class that handles a selector's statistics.
+     */
+    static Class<? extends AbstractStatsProcedureCallback> callbackClass(SupportedStatsSelectors selector) {
+        return statsData.get(selector).cbClass;
     }
 
     private AbstractStatsProcedureCallback makeCallback(SupportedStatsSelectors selector) {
@@ -186,38 +548,189 @@ public class VoltDBPrometheusMetricEngine {
         }
     }
 
-    public void registerMetric(String metricName, String... labels) {
-        Gauge thisGauge = m_gaugeMap.get(metricName);
-        if (thisGauge == null) {
-            String helpText = m_helpText.get(metricName);
-            if (helpText == null) {
-                helpText = metricName;
-            }
-            if (labels != null) {
-                thisGauge = Gauge.build()
-                                 .name(metricName)
-                                 .labelNames(labels)
-                                 .help(helpText)
-                                 .register();
-            } else {
-                thisGauge = Gauge.build()
-                                 .name(metricName)
-                                 .help(helpText)
-                                 .register();
-            }
-            m_gaugeMap.put(metricName, thisGauge);
-            logDebug("Adding metric %s", metricName);
+    /**
+     * Creates storage for metrics with the given label names.
+     * Called by statistics callback classes at initialization.
+     */
+    public SeriesStore createStore(String... labels) {
+        SeriesStore store;
+        if (m_clusterName != null) {
+            store = new SeriesStore(labels, new String[] { "cluster" }, new String[] { m_clusterName });
+        } else {
+            store = new SeriesStore(labels, new String[0], new String[0]);
+        }
+        synchronized (m_stores) {
+            m_stores.add(store);
+            m_storeSelectors.put(store, m_initSelector);
+        }
+        return store;
+    }
+
+    /**
+     * Adds a metric to a store, returning its column index
+     * in that store. In delta mode, a cumulative metric is
+     * accompanied by a '_per_second' rate metric. In counter mode,
+     * a cumulative metric is a counter. The unit, if any, is the
+     * suffix of the name; it is reported in OpenMetrics output.
+     */
+    public int registerMetric(SeriesStore store, String metricName, String unit, boolean cumulative) {
+        if (m_counterMode && cumulative) {
+            metricName += "_total";
+            addName(store, metricName);
+            logDebug("Adding counter %s", metricName);
+            return store.addCounterColumn(metricName, helpText(metricName), unit);
+        }
+        addName(store, metricName);
+        logDebug("Adding metric %s", metricName);
+        if (m_deltaMode && cumulative) {
+            String rateName = metricName + "_per_second";
+            addName(store, rateName);
+            return store.addDeltaColumn(metricName, helpText(metricName), unit, rateName, helpText(rateName));
+        }
+        return store.addColumn(metricName, helpText(metricName), unit);
+    }
+
+    /**
+     * Adds a histogram metric to a store, returning its column index.
+     */
+    public int registerHistogram(SeriesStore store, String metricName, String unit, HistogramBuckets buckets) {
+        addName(store, metricName);
+        logDebug("Adding histogram %s", metricName);
+        return store.addHistogramColumn(metricName, helpText(metricName), unit, buckets);
+    }
+
+    /**
+     * Adds a counter metric to a store, returning its column index,
+     * whatever the delta or counter mode. The name should end with
+     * '_total'.
+     */
+    public int registerCounter(SeriesStore store, String metricName, String unit) {
+        addName(store, metricName);
+        logDebug("Adding counter %s", metricName);
+        return store.addCounterColumn(metricName, helpText(metricName), unit);
+    }
+
+    /**
+     * Adds a summary metric to a store, returning its column index.
+     */
+    public int registerSummary(SeriesStore store, String metricName, String unit, HistogramBuckets quantiles) {
+        addName(store, metricName);
+        logDebug("Adding summary %s", metricName);
+        return store.addSummaryColumn(metricName, helpText(metricName), unit, quantiles);
+    }
+
+    private void addName(SeriesStore store, String metricName) {
+        if (m_metricMap.putIfAbsent(metricName, store) != null) {
+            throw new IllegalArgumentException("Duplicate metric " + metricName);
         }
     }
 
+    private String helpText(String metricName) {
+        String helpText = m_helpText.get(metricName);
+        return (helpText != null ? helpText : metricName);
+    }
+
     public void setHelp(String metricName, String help) {
         m_helpText.put(metricName, help);
     }
 
-    public Set<String> getAllGaugeNames() {
-        return m_gaugeMap.keySet();
+    public Set<String> getAllMetricNames() {
+        return m_metricMap.keySet();
+    }
+
+    /**
+     * Notes that a scrape would like metrics in a given format. Since
+     * rendering is done at collection time, this takes effect from
+     * the next collection; meanwhile the scrape must make do with
+     * another format.
+     */
+    public void requestFormat(ExpositionFormat format) {
+        if (!m_formats.contains(format)) {
+            synchronized (m_writers) {
+                if (!m_formats.contains(format)) {
+                    Set<ExpositionFormat> formats = EnumSet.copyOf(m_formats);
+                    formats.add(format);
+                    m_formats = formats;
+                    logInfo("Metrics will also be rendered in %s format", format.name().toLowerCase());
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders current values of all our metrics, as of the most recent
+     * gatherMetrics, in each format that has been asked for. This is
+     * done once per collection; the result is served to every scrape
+     * until the next collection. The writers are reused, so the caller
+     * must serialize calls (as it does for gatherMetrics). If we have
+     * a cluster name, it is added as a label to every sample.
+     */
+    public Map<ExpositionFormat, Exposition> render() {
+        return render(m_callbackMap.keySet());
+    }
+
+    /**
+     * As render(), but limited to the metrics of some selectors,
+     * plus the agent's own metrics (including those of stores not
+     * created by a selector, such as the prober's).
+     */
+    public Map<ExpositionFormat, Exposition> render(Set<SupportedStatsSelectors> selectors) {
+        Map<ExpositionFormat, Exposition> result = new EnumMap<>(ExpositionFormat.class);
+        List<MetricFamilySamples> agentFamilies = agentFamilies();
+        String[] constNames = (m_clusterName == null ? new String[0] : new String[] { "cluster" });
+        String[] constValues = (m_clusterName == null ? new String[0] : new String[] { m_clusterName });
+        for (ExpositionFormat format : m_formats) {
+            ExpositionWriter writer;
+            synchronized (m_writers) {
+                writer = m_writers.computeIfAbsent(format, ExpositionWriter::create);
+            }
+            long renderStart = System.nanoTime();
+            synchronized (m_stores) {
+                for (SeriesStore store : m_stores) {
+                    SupportedStatsSelectors selector = m_storeSelectors.get(store);
+                    if (selector == null || selectors.contains(selector)) {
+                        store.render(writer);
+                    }
+                }
+            }
+            for (MetricFamilySamples family : agentFamilies) {
+                writer.family(family, constNames, constValues);
+            }
+            Exposition exp = writer.finish();
+            exp.gzipped(); // Prometheus always asks for gzip
+            result.put(format, exp);
+            m_agentStats.recordRender(format, System.nanoTime() - renderStart, exp.size());
+        }
+        return result;
+    }
+
+    /*
+     * The agent's own families, in the order created, each with its
+     * samples in order of label values, rather than the order of the
+     * collector's map of children.
+     */
+    private List<MetricFamilySamples> agentFamilies() {
+        List<MetricFamilySamples> families = new ArrayList<>();
+        for (Collector collector : m_agentCollectors) {
+            for (MetricFamilySamples family : collector.collect()) {
+                family.samples.sort(SAMPLE_ORDER);
+                families.add(family);
+            }
+        }
+        return families;
     }
 
+    private static final Comparator<MetricFamilySamples.Sample> SAMPLE_ORDER = (a, b) -> {
+        int n = Math.min(a.labelValues.size(), b.labelValues.size());
+        for (int i = 0; i < n; i++) {
+            int c = a.labelValues.get(i).compareTo(b.labelValues.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.labelValues.size(), b.labelValues.size());
+    };
+
     /**
      * This method is called by our Prometheus servlet in response to
      * a 'GET' from Prometheus itself.
@@ -226,45 +739,91 @@ public class VoltDBPrometheusMetricEngine {
      * On any failure we dump the client, and retry on next attempt.
      *
      * We initiate asynchronous statistics collection and wait for
-     * all of those to complete, before proceeding further. The
-     * callback classes use reportMetric to record metric values.
+     * all of those to complete, or for the collection budget to
+     * expire, before proceeding further. The callback classes use
+     * reportMetric to record metric values. Selectors that did not
+     * complete keep their previous values, marked as stale.
      */
     public boolean gatherMetrics() {
+        return gatherMetrics(m_callbackMap.keySet());
+    }
+
+    /**
+     * As gatherMetrics(), but polls only the given selectors (those
+     * of them that are due); the others are left untouched.
+     */
+    public boolean gatherMetrics(Set<SupportedStatsSelectors> selectors) {
         boolean success = false;
         int errCnt = 0;
         try {
             if (m_client == null) {
                 m_client = createClient();
+                m_clientStats.setClient(m_client);
             }
             logDebug("Starting metrics collection for server %s", m_servers);
 
-            m_statCount = 0;
+            m_statCount.reset();
             final long starttimeMS = System.currentTimeMillis();
-            final CountDownLatch cbwaiters = new CountDownLatch(m_callbackMap.size());
+            final EnumMap<SupportedStatsSelectors, AbstractStatsProcedureCallback> due = selectorsDue(starttimeMS, selectors);
+            final CountDownLatch cbwaiters = new CountDownLatch(due.size());
 
-            // Issue calls to VoltDB for all supported statistics;
+            // Issue calls to VoltDB for all statistics that are due;
             // callback will be executed when response arrives.
-            for (Map.Entry<SupportedStatsSelectors, AbstractStatsProcedureCallback> ent : m_callbackMap.entrySet()) {
+            for (Map.Entry<SupportedStatsSelectors, AbstractStatsProcedureCallback> ent : due.entrySet()) {
                 SupportedStatsSelectors selector = ent.getKey();
                 AbstractStatsProcedureCallback cb = ent.getValue();
-                cb.setWaiters(cbwaiters);
-                errCnt += callProcedure(cb, "@Statistics", selector.name(), m_interval);
+                errCnt += callProcedure(cb, cb.startCall(cbwaiters, m_decoders), cbwaiters,
+                                        "@Statistics", selector.name(), STATS_INTERVAL);
             }
 
-            // Let's wait for callbacks to finish.
-            m_client.drain();
-            cbwaiters.await();
+            // Let's wait for callbacks to finish, within our budget.
+            boolean complete = true;
+            if (m_collectionTimeout > 0) {
+                complete = cbwaiters.await(m_collectionTimeout, TimeUnit.MILLISECONDS);
+            } else {
+                cbwaiters.await();
+            }
+            final long now = System.currentTimeMillis();
+            for (Map.Entry<SupportedStatsSelectors, AbstractStatsProcedureCallback> ent : due.entrySet()) {
+                SupportedStatsSelectors selector = ent.getKey();
+                AbstractStatsProcedureCallback cb = ent.getValue();
+                SelectorHealth health = m_health.get(selector);
+                boolean timedOut = (!complete && cb.abandonCall());
+                if (cb.lastCallSucceeded()) {
+                    m_lastPolled.put(selector, starttimeMS);
+                    m_staleGauge.labels(selector.name()).set(0);
+                    m_lastSuccessGauge.labels(selector.name()).set(now / 1000.0);
+                    health.recordSuccess();
+                    m_agentStats.recordCall(selector, cb);
+                    int evicted = cb.endCycle(m_evictAfter);
+                    if (evicted != 0) {
+                        m_evictedCounter.labels(selector.name()).inc(evicted);
+                        logDebug("Removed %d %s series no longer reported by server %s",
+                                 evicted, selector, m_servers);
+                    }
+                } else {
+                    m_staleGauge.labels(selector.name()).set(1);
+                    health.recordFailure(now, cb.lastStatus(),
+                                         timedOut ? "not complete in " + m_collectionTimeout + " msec"
+                                                  : cb.lastStatusString());
+                }
+                m_stateGauge.labels(selector.name()).set(health.getState().ordinal());
+            }
+
+            // Only loss of all connections warrants a new client; failure
+            // of individual selectors is handled by quarantine.
             if (errCnt > 0) {
-                m_client.close();
+                deleteClient(m_client);
                 m_client = null;
-                logError("Error collecting metrics for server %s, will reconnect on next polling cycle",
+                m_clientStats.setClient(null);
+                logError("Lost connection to server %s, will reconnect on next polling cycle",
                          m_servers);
-                success = (m_statCount > 0);
+                success = (m_statCount.sum() > 0);
             }
 
             else {
                 logDebug("Finished metrics collection for server %s; collected %d stats in %d msec",
-                         m_servers, m_statCount, System.currentTimeMillis() - starttimeMS);
+                         m_servers, m_statCount.sum(), System.currentTimeMillis() - starttimeMS);
                 success = true;
             }
 
@@ -276,11 +835,77 @@ public class VoltDBPrometheusMetricEngine {
             logError("Failed to poll for statistics for server %s: %s", m_servers, ex.getMessage());
             deleteClient(m_client);
             m_client = null;
+            m_clientStats.setClient(null);
         }
 
+        m_clientStats.report();
+        if (m_prober != null) {
+            m_prober.report();
+        }
+        reportAgentStats();
         return success;
     }
 
+    /**
+     * Processes a recorded response for a selector, received at the
+     * given time (msec), as a successful poll would be processed, for
+     * StatsReplay. Returns false if we do not poll the selector, or
+     * processing failed. Must not be mixed with gatherMetrics.
+     */
+    boolean replayResponse(SupportedStatsSelectors selector, VoltTable[] tables, long receivedAt) {
+        AbstractStatsProcedureCallback cb = m_callbackMap.get(selector);
+        if (cb == null) {
+            return false;
+        }
+        cb.replayCall(new ClientResponseImpl(ClientResponse.SUCCESS, tables, ""), receivedAt);
+        if (!cb.lastCallSucceeded()) {
+            return false;
+        }
+        m_lastSuccessGauge.labels(selector.name()).set(receivedAt / 1000.0);
+        m_agentStats.recordCall(selector, cb);
+        int evicted = cb.endCycle(m_evictAfter);
+        if (evicted != 0) {
+            m_evictedCounter.labels(selector.name()).inc(evicted);
+        }
+        return true;
+    }
+
+    /**
+     * Brings the agent's own metrics up to date, at the
+     * end of a collection.
+     */
+    void reportAgentStats() {
+        synchronized (m_stores) {
+            m_agentStats.report(m_stores);
+        }
+    }
+
+    /*
+     * Determines which of the wanted selectors need to be polled
+     * at time 'now'. Quarantined and disabled selectors are skipped.
+     * A selector with a polling period is due once that period has
+     * (nearly) elapsed since its last successful poll; the slack
+     * avoids skipping a whole cycle due to timer jitter when the
+     * period is a multiple of the scrape interval.
+     */
+    private EnumMap<SupportedStatsSelectors, AbstractStatsProcedureCallback> selectorsDue(long now, Set<SupportedStatsSelectors> wanted) {
+        EnumMap<SupportedStatsSelectors, AbstractStatsProcedureCallback> due =
+            new EnumMap<>(SupportedStatsSelectors.class);
+        for (Map.Entry<SupportedStatsSelectors, AbstractStatsProcedureCallback> ent : m_callbackMap.entrySet()) {
+            SupportedStatsSelectors selector = ent.getKey();
+            Long period = m_pollPeriods.get(selector);
+            Long last = m_lastPolled.get(selector);
+            if (!wanted.contains(selector) || !m_health.get(selector).isPollable(now)) {
+                continue;
+            }
+            if (period == null || last == null || now < last
+                    || now - last >= period - period / 10) {
+                due.put(selector, ent.getValue());
+            }
+        }
+        return due;
+    }
+
     /*
      * Set up VoltDB client object, connects to one or more VoltDB servers.
      */
@@ -288,7 +913,7 @@ public class VoltDBPrometheusMetricEngine {
         Client client = null;
         String srv = null;
         try {
-            ClientConfig config = new ClientConfig(m_user, m_password);
+            ClientConfig config = new ClientConfig(m_user, m_password, m_clientStats);
             if (m_sslEnabled) {
                 if (m_sslConfigFile != null) {
                     config.setTrustStoreConfigFromPropertyFile(m_sslConfigFile);
@@ -297,7 +922,7 @@ public class VoltDBPrometheusMetricEngine {
                 }
                 config.enableSSL();
             }
-            config.setProcedureCallTimeout(0); // infinite
+            config.setProcedureCallTimeout(m_selectorTimeout); // 0 is infinite
             config.setReconnectOnConnectionLoss(true);
             client = ClientFactory.createClient(config);
             for (String s : m_servers.split(",")) {
@@ -321,40 +946,57 @@ public class VoltDBPrometheusMetricEngine {
         return client;
     }
 
+    /**
+     * The current VoltDB client, or null if not connected. The
+     * client is created and dropped by gatherMetrics; others may
+     * use it while it is current.
+     */
+    Client getClient() {
+        return m_client;
+    }
+
     /*
-     * Used by gatherMetrics to initiate collection of one statistics class
+     * Used by gatherMetrics to initiate collection of one statistics class.
+     * Returns 1 if the call could not be made for lack of any connection,
+     * otherwise 0; other failures affect only this selector.
      */
-    private int callProcedure(AbstractStatsProcedureCallback cb, String procName, String statsName, int interval) {
+    private int callProcedure(AbstractStatsProcedureCallback cb, ProcedureCallback call, CountDownLatch cbwaiters,
+                              String procName, String statsName, int interval) {
         int err = 0;
         try {
-            m_client.callProcedure(cb, procName, statsName, interval);
+            // The client's procedure call timeout is the selector timeout
+            m_client.callProcedure(call, procName, statsName, interval);
         } catch (Exception ex) {
-            logError("Failed to call %s procedure: %s", statsName, ex.getMessage());
-            if (cb.cbwaiters != null) {
-                cb.cbwaiters.countDown();
+            logDebug("Failed to call %s procedure: %s", statsName, ex.getMessage());
+            if (cb.abandonCall()) {
+                cbwaiters.countDown();
+            }
+            if (ex instanceof NoConnectionsException) {
+                err = 1;
             }
-            err = 1;
         }
         return err;
     }
 
     /**
      * Called from statistics callback classes to report values
-     * of metrics.
+     * of metrics, by store column and series.
      */
-    public void reportMetric(String metricName, double value, String... labelValues) {
-        Gauge thisGauge = m_gaugeMap.get(metricName);
-        if (thisGauge != null) {
-            if (labelValues != null) {
-                thisGauge.labels(labelValues).set(value);
-            } else {
-                thisGauge.set(value);
-            }
-            logDebug("%s = %s", metricName, value);
-        } else {
-            logDebug("Couldn't find metric: %s", metricName);
-        }
-        m_statCount++;
+    public void reportMetric(SeriesStore store, int column, int series, double value) {
+        store.set(column, series, value);
+        m_statCount.increment();
+    }
+
+    public void reportHistogram(SeriesStore store, int column, int series, double[] cumulative,
+                                double count, double sum) {
+        store.setHistogram(column, series, cumulative, count, sum);
+        m_statCount.increment();
+    }
+
+    public void reportSummary(SeriesStore store, int column, int series, double[] values,
+                              double count, double sum) {
+        store.setHistogram(column, series, values, count, sum);
+        m_statCount.increment();
     }
 
     /*
@@ -380,6 +1022,9 @@ public class VoltDBPrometheusMetricEngine {
     public void disconnect() {
         deleteClient(m_client);
         m_client = null;
+        if (m_clientStats != null) {
+            m_clientStats.setClient(null);
+        }
     }
 
     private static void deleteClient(Client client) {
@@ -0,0 +1,148 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.HdrHistogram_voltpatches.Histogram;
+import org.junit.Test;
+
+/**
+ * Merging of per-host cumulative histograms into cluster
+ * latency windows, including host restarts.
+ */
+public class ClusterLatencyWindowsTest {
+
+    private static final HistogramBuckets MEDIAN = new HistogramBuckets(0.5);
+
+    private final ClusterLatencyWindows windows = new ClusterLatencyWindows();
+
+    /*
+     * A cumulative histogram as a host reports it, from pairs
+     * of value (usec) and count.
+     */
+    private static Histogram histogram(long... valueCounts) {
+        Histogram h = new Histogram(60_000_000L, 2);
+        for (int i = 0; i < valueCounts.length; i += 2) {
+            h.recordValueWithCount(valueCounts[i], valueCounts[i + 1]);
+        }
+        return h;
+    }
+
+    private void poll(long now, Object... hostHistograms) {
+        windows.beginPoll();
+        for (int i = 0; i < hostHistograms.length; i += 2) {
+            windows.add((String) hostHistograms[i], (Histogram) hostHistograms[i + 1]);
+        }
+        windows.endPoll(now);
+    }
+
+    private double median(int w) {
+        double[] values = new double[1];
+        windows.quantiles(w, MEDIAN, values);
+        return values[0];
+    }
+
+    @Test
+    public void firstPollIsOnlyABaseline() {
+        assertFalse(windows.hasData());
+        poll(1000, "host1", histogram(1000, 5));
+        assertTrue(windows.hasData());
+        assertEquals(0, windows.getCount());
+        for (int w = 0; w < windows.getWindowCount(); w++) {
+            assertTrue(Double.isNaN(median(w)));
+        }
+    }
+
+    @Test
+    public void changesAreMergedAcrossHosts() {
+        poll(1000, "host1", histogram(1000, 5), "host2", histogram(2000, 5));
+        poll(2000, "host1", histogram(1000, 15), "host2", histogram(2000, 15));
+        assertEquals(20, windows.getCount());
+        assertEquals(10 * 0.001 + 10 * 0.002, windows.getSum(), 0.0001);
+        poll(3000, "host1", histogram(1000, 45), "host2", histogram(2000, 15));
+        assertEquals(50, windows.getCount());
+        for (int w = 0; w < windows.getWindowCount(); w++) {
+            assertEquals(0.001, median(w), 0.00001);
+        }
+    }
+
+    @Test
+    public void restartWithHigherTotalCountsWholeHistogram() {
+        poll(1000, "host1", histogram(1000, 100));
+        poll(2000, "host1", histogram(5000, 150));
+        assertEquals(150, windows.getCount());
+        assertEquals(150 * 0.005, windows.getSum(), 0.01); // within histogram precision
+        assertEquals(0.005, median(0), 0.0001);
+    }
+
+    @Test
+    public void restartWithLowerTotalCountsWholeHistogram() {
+        poll(1000, "host1", histogram(1000, 100));
+        poll(2000, "host1", histogram(2000, 20));
+        assertEquals(20, windows.getCount());
+        assertEquals(0.002, median(0), 0.00002);
+    }
+
+    @Test
+    public void shortWindowEmptiesFirst() {
+        poll(0, "host1", histogram());
+        poll(1000, "host1", histogram(1000, 10));
+        poll(20_000, "host1", histogram(1000, 10));
+        assertTrue(Double.isNaN(median(0))); // 10s
+        assertEquals(0.001, median(1), 0.00001); // 1m
+        assertEquals(0.001, median(2), 0.00001); // 5m
+        poll(400_000, "host1", histogram(1000, 10));
+        for (int w = 0; w < windows.getWindowCount(); w++) {
+            assertTrue(Double.isNaN(median(w)));
+        }
+        assertEquals(10, windows.getCount());
+    }
+
+    @Test
+    public void widerHistogramWidensWindows() {
+        Histogram narrow = new Histogram(1000L, 2);
+        narrow.recordValueWithCount(500, 10);
+        poll(0, "host1", narrow, "host2", histogram(1000, 10));
+        poll(1000, "host1", narrow, "host2", histogram(1000, 20));
+        assertEquals(10, windows.getCount());
+        // host1 restarted with a wider range
+        poll(2000, "host1", histogram(5_000_000, 30), "host2", histogram(1000, 20));
+        assertEquals(40, windows.getCount());
+        double[] values = new double[2];
+        windows.quantiles(0, new HistogramBuckets(0.1, 0.5), values);
+        assertEquals(0.001, values[0], 0.00001); // host2's earlier values kept
+        assertEquals(5.0, values[1], 0.05);
+        poll(3000, "host1", histogram(5_000_000, 40), "host2", histogram(1000, 20));
+        assertEquals(50, windows.getCount());
+    }
+
+    @Test
+    public void missingHostIsBaselinedAgain() {
+        poll(1000, "host1", histogram(1000, 1), "host2", histogram(1000, 1));
+        poll(2000, "host1", histogram(1000, 2));
+        assertEquals(1, windows.getCount());
+        // host2's counts since its first poll are not attributed to this interval
+        poll(3000, "host1", histogram(1000, 3), "host2", histogram(1000, 50));
+        assertEquals(2, windows.getCount());
+        poll(4000, "host1", histogram(1000, 3), "host2", histogram(1000, 60));
+        assertEquals(12, windows.getCount());
+    }
+
+    @Test
+    public void continuesOnlyIfNoBucketDecreased() {
+        Histogram previous = histogram(1000, 10, 2000, 10);
+        assertTrue(ClusterLatencyWindows.continues(histogram(1000, 10, 2000, 10), previous));
+        assertTrue(ClusterLatencyWindows.continues(histogram(1000, 11, 2000, 10, 3000, 1), previous));
+        assertFalse(ClusterLatencyWindows.continues(histogram(1000, 5), previous));
+        assertFalse(ClusterLatencyWindows.continues(histogram(1000, 5, 2000, 30), previous));
+        Histogram narrow = new Histogram(1000L, 2);
+        narrow.recordValueWithCount(500, 100);
+        assertFalse(ClusterLatencyWindows.continues(narrow, previous));
+    }
+}
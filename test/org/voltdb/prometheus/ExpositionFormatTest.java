@@ -0,0 +1,78 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.voltdb.prometheus.ExpositionFormat.OPENMETRICS;
+import static org.voltdb.prometheus.ExpositionFormat.PROTOBUF;
+import static org.voltdb.prometheus.ExpositionFormat.TEXT;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Content negotiation from the Accept header.
+ */
+public class ExpositionFormatTest {
+
+    private static final Set<ExpositionFormat> ALL = EnumSet.allOf(ExpositionFormat.class);
+
+    private static final String PROMETHEUS_ACCEPT =
+        "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7," +
+        "application/openmetrics-text;version=1.0.0;q=0.5,text/plain;version=0.0.4;q=0.3,*/*;q=0.1";
+
+    @Test
+    public void textWithoutAcceptHeader() {
+        assertEquals(TEXT, ExpositionFormat.negotiate(null, ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate("", ALL));
+    }
+
+    @Test
+    public void highestQualityWins() {
+        assertEquals(PROTOBUF, ExpositionFormat.negotiate(PROMETHEUS_ACCEPT, ALL));
+        assertEquals(OPENMETRICS, ExpositionFormat.negotiate(PROMETHEUS_ACCEPT, EnumSet.of(TEXT, OPENMETRICS)));
+        assertEquals(TEXT, ExpositionFormat.negotiate(PROMETHEUS_ACCEPT, EnumSet.of(TEXT)));
+        assertEquals(OPENMETRICS, ExpositionFormat.negotiate("text/plain;q=0.4, application/openmetrics-text", ALL));
+    }
+
+    @Test
+    public void earliestWinsOnTie() {
+        assertEquals(OPENMETRICS, ExpositionFormat.negotiate("application/openmetrics-text, text/plain", ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate("text/plain, application/openmetrics-text", ALL));
+    }
+
+    @Test
+    public void protobufNeedsProtoAndDelimitedEncoding() {
+        assertEquals(TEXT, ExpositionFormat.negotiate("application/vnd.google.protobuf", ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate(
+            "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text", ALL));
+        assertEquals(PROTOBUF, ExpositionFormat.negotiate(
+            "Application/Vnd.Google.Protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited", ALL));
+    }
+
+    @Test
+    public void openMetricsVersions() {
+        assertEquals(OPENMETRICS, ExpositionFormat.negotiate("application/openmetrics-text;version=0.0.1", ALL));
+        assertEquals(OPENMETRICS, ExpositionFormat.negotiate("application/openmetrics-text;version=1.0.0", ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate("application/openmetrics-text;version=2.0.0", ALL));
+    }
+
+    @Test
+    public void zeroOrBadQualityIsNotAcceptable() {
+        assertEquals(TEXT, ExpositionFormat.negotiate("application/openmetrics-text;q=0", ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate("application/openmetrics-text;q=high", ALL));
+    }
+
+    @Test
+    public void textWhenNothingAcceptableIsAvailable() {
+        assertEquals(TEXT, ExpositionFormat.negotiate("application/json", ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate("application/openmetrics-text", EnumSet.of(TEXT)));
+        assertEquals(TEXT, ExpositionFormat.negotiate("*/*", ALL));
+        assertEquals(TEXT, ExpositionFormat.negotiate("text/*;q=0.2", ALL));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Merging of the families of several clusters' expositions.
+ */
+public class ExpositionTest {
+
+    /*
+     * One cluster's metrics: a gauge per host, and for the
+     * east cluster only, a second family.
+     */
+    private static Exposition cluster(String cluster, ExpositionFormat format) {
+        SeriesStore store = new SeriesStore(new String[] { "hostname" }, new String[] { "cluster" },
+                                            new String[] { cluster });
+        int gauge = store.addColumn("test_gauge", "A gauge", null);
+        int other = (cluster.equals("east") ? store.addColumn("test_other", "Another gauge", null) : -1);
+        store.beginCycle(1000);
+        for (int host = 0; host < 2; host++) {
+            int id = store.series(new String[] { "host" + host });
+            store.set(gauge, id, host);
+            if (other >= 0) {
+                store.set(other, id, 10 + host);
+            }
+        }
+        ExpositionWriter writer = ExpositionWriter.create(format);
+        store.render(writer);
+        return writer.finish();
+    }
+
+    private static byte[] merged(List<Exposition> parts, ExpositionFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Exposition.writeMerged(parts, out);
+        Exposition.trailer(format).writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static int occurrences(String text, String s) {
+        int count = 0;
+        for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void familiesOfSameNameAreMerged() throws IOException {
+        List<Exposition> parts = Arrays.asList(cluster("west", ExpositionFormat.TEXT),
+                                               cluster("east", ExpositionFormat.TEXT));
+        String text = new String(merged(parts, ExpositionFormat.TEXT), StandardCharsets.UTF_8);
+        assertEquals(1, occurrences(text, "# TYPE test_gauge gauge\n"));
+        assertEquals(1, occurrences(text, "# TYPE test_other gauge\n"));
+        assertEquals(4, occurrences(text, "test_gauge{"));
+        assertTrue(text, text.contains("test_gauge{cluster=\"west\",hostname=\"host1\",} 1.0\n"));
+        assertTrue(text, text.contains("test_gauge{cluster=\"east\",hostname=\"host0\",} 0.0\n"));
+        // all samples of a family follow its header
+        assertTrue(text, text.lastIndexOf("test_gauge{") < text.indexOf("# HELP test_other"));
+    }
+
+    @Test
+    public void excludedFamiliesAreNotWritten() throws IOException {
+        List<Exposition> parts = Arrays.asList(cluster("west", ExpositionFormat.TEXT),
+                                               cluster("east", ExpositionFormat.TEXT));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Exposition.writeMerged(parts, name -> name.equals("test_other"), out);
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertFalse(text, text.contains("test_gauge"));
+        assertEquals(2, occurrences(text, "test_other{"));
+    }
+
+    @Test
+    public void openMetricsEndsOnce() throws IOException {
+        List<Exposition> parts = Arrays.asList(cluster("west", ExpositionFormat.OPENMETRICS),
+                                               cluster("east", ExpositionFormat.OPENMETRICS));
+        String text = new String(merged(parts, ExpositionFormat.OPENMETRICS), StandardCharsets.UTF_8);
+        assertEquals(1, occurrences(text, "# TYPE test_gauge gauge\n"));
+        assertEquals(4, occurrences(text, "test_gauge{"));
+        assertEquals(1, occurrences(text, "# EOF"));
+        assertTrue(text, text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void protobufLengthCoversMergedFamily() throws IOException {
+        // one family, with the samples of both parts
+        List<Exposition> parts = Arrays.asList(cluster("west", ExpositionFormat.PROTOBUF),
+                                               cluster("west", ExpositionFormat.PROTOBUF));
+        byte[] single = merged(parts.subList(0, 1), ExpositionFormat.PROTOBUF);
+        byte[] both = merged(parts, ExpositionFormat.PROTOBUF);
+        assertEquals(parts.get(0).size(), single.length);
+        assertEquals(single.length, prefixSize(single) + prefix(single));
+        assertEquals(both.length, prefixSize(both) + prefix(both));
+        assertTrue(prefix(both) > prefix(single));
+    }
+
+    /*
+     * The varint length that precedes a delimited protobuf message
+     */
+    private static int prefix(byte[] data) {
+        int length = 0;
+        for (int i = 0, shift = 0; ; i++, shift += 7) {
+            length |= (data[i] & 0x7F) << shift;
+            if ((data[i] & 0x80) == 0) {
+                return length;
+            }
+        }
+    }
+
+    private static int prefixSize(byte[] data) {
+        int i = 0;
+        while ((data[i] & 0x80) != 0) {
+            i++;
+        }
+        return i + 1;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.voltdb.VoltTable;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Large tables decoded in parallel give exactly the metrics
+ * they give when decoded serially, in every interval mode.
+ *
+ * The test target runs with several processors available,
+ * so that the decoder pool is used on any machine.
+ */
+public class ParallelDecodeTest {
+
+    // 4 x 8 x 260 rows for selectors with partition ids and names
+    private static final int HOSTS = 4, PARTITIONS = 8, NAMES = 260;
+
+    private static final Set<SupportedStatsSelectors> SELECTORS = EnumSet.allOf(SupportedStatsSelectors.class);
+
+    @Test
+    public void gauges() throws IOException {
+        compare(false, false);
+    }
+
+    @Test
+    public void deltas() throws IOException {
+        compare(true, false);
+    }
+
+    @Test
+    public void counters() throws IOException {
+        compare(false, true);
+    }
+
+    private static VoltDBPrometheusMetricEngine engine(boolean delta, boolean counters, int decodeThreads) {
+        VoltDBPrometheusMetricEngine engine = new VoltDBPrometheusMetricEngine("localhost", 0, "", "", false, null);
+        engine.setIntervalMode(delta);
+        engine.setCounterMode(counters);
+        engine.setDecodeThreads(decodeThreads);
+        engine.setSupportedStats(SELECTORS);
+        return engine;
+    }
+
+    private static void compare(boolean delta, boolean counters) throws IOException {
+        VoltDBPrometheusMetricEngine serial = engine(delta, counters, 0);
+        VoltDBPrometheusMetricEngine parallel = engine(delta, counters, 4);
+        assertNull(serial.getParallelDecoders());
+        assertNotNull("decoder pool not used", parallel.getParallelDecoders());
+        int largest = 0;
+        for (int tick = 0; tick < 2; tick++) {
+            long receivedAt = 1000 + tick * 5000;
+            for (SupportedStatsSelectors selector : SELECTORS) {
+                VoltTable table = StatsTables.table(VoltDBPrometheusMetricEngine.callbackClass(selector),
+                                                    HOSTS, PARTITIONS, NAMES, tick);
+                largest = Math.max(largest, table.getRowCount());
+                assertTrue(selector.name(), serial.replayResponse(selector, new VoltTable[] { table }, receivedAt));
+                table.resetRowPosition();
+                assertTrue(selector.name(), parallel.replayResponse(selector, new VoltTable[] { table }, receivedAt));
+            }
+        }
+        assertTrue(largest >= AbstractStatsProcedureCallback.PARALLEL_ROWS);
+        String expected = metrics(serial);
+        assertTrue(expected.contains("voltdb_table_tuple_count"));
+        assertEquals(expected, metrics(parallel));
+    }
+
+    /*
+     * Rendered statistics, without the agent's own metrics,
+     * which include processing times
+     */
+    private static String metrics(VoltDBPrometheusMetricEngine engine) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.render().get(ExpositionFormat.TEXT).writeTo(out);
+        StringBuilder metrics = new StringBuilder();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.contains("voltdb_agent_")) {
+                metrics.append(line).append('\n');
+            }
+        }
+        return metrics.toString();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Parsing of the Accept-Encoding header.
+ */
+public class PrometheusServletTest {
+
+    @Test
+    public void gzipAccepted() {
+        assertTrue(PrometheusServlet.acceptsGzip("gzip"));
+        assertTrue(PrometheusServlet.acceptsGzip("GZIP;q=0.5"));
+        assertTrue(PrometheusServlet.acceptsGzip("br, gzip"));
+        assertTrue(PrometheusServlet.acceptsGzip("deflate;q=0.5, gzip ; q=1.0"));
+    }
+
+    @Test
+    public void gzipNotAccepted() {
+        assertFalse(PrometheusServlet.acceptsGzip(null));
+        assertFalse(PrometheusServlet.acceptsGzip(""));
+        assertFalse(PrometheusServlet.acceptsGzip("deflate"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzip;q=0"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzip;q=0.0, identity"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzip;q=x"));
+        assertFalse(PrometheusServlet.acceptsGzip("x-gzip"));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Parsing of the name[] and selector scrape parameters, and
+ * the families and selectors they pick.
+ */
+public class ScrapeFilterTest {
+
+    private static final SupportedStatsSelectors TABLE = SupportedStatsSelectors.TABLE;
+    private static final SupportedStatsSelectors LATENCY = SupportedStatsSelectors.LATENCY;
+    private static final SupportedStatsSelectors MEMORY = SupportedStatsSelectors.MEMORY;
+
+    @Test
+    public void noParametersServesEverything() {
+        ScrapeFilter filter = ScrapeFilter.parse(null, null);
+        assertSame(ScrapeFilter.ALL, filter);
+        assertFalse(filter.isFiltered());
+        assertTrue(filter.includes("voltdb_table_tuple_count", TABLE));
+        assertTrue(filter.includes("voltdb_agent_up", null));
+    }
+
+    @Test
+    public void selectorListsAreCaseInsensitive() {
+        ScrapeFilter filter = ScrapeFilter.parse(null, new String[] { " table ,,Latency", "" });
+        assertTrue(filter.isFiltered());
+        assertTrue(filter.includes("voltdb_table_tuple_count", TABLE));
+        assertTrue(filter.includes("voltdb_latency_p99_seconds", LATENCY));
+        assertFalse(filter.includes("voltdb_memory_rss_bytes", MEMORY));
+    }
+
+    @Test
+    public void unknownSelectorIsRejected() {
+        try {
+            ScrapeFilter.parse(null, new String[] { "TABLE,NOSUCH" });
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("NOSUCH"));
+        }
+    }
+
+    @Test
+    public void nameFilterServesOnlyNamedFamilies() {
+        ScrapeFilter filter = ScrapeFilter.parse(new String[] { "voltdb_table_tuple_count", "voltdb_agent_up" }, null);
+        assertTrue(filter.includes("voltdb_table_tuple_count", TABLE));
+        assertFalse(filter.includes("voltdb_table_inline_tuple_bytes", TABLE));
+        assertTrue(filter.includes("voltdb_agent_up", null));
+        assertFalse(filter.includes("voltdb_agent_scrape_seconds", null));
+    }
+
+    @Test
+    public void agentFamiliesServedWithAnySelectorFilter() {
+        ScrapeFilter filter = ScrapeFilter.parse(null, new String[] { "MEMORY" });
+        assertTrue(filter.includes("voltdb_agent_up", null));
+    }
+
+    @Test
+    public void eitherFormMatches() {
+        ScrapeFilter filter = ScrapeFilter.parse(new String[] { "voltdb_table_tuple_count" }, new String[] { "MEMORY" });
+        assertTrue(filter.includes("voltdb_table_tuple_count", TABLE));
+        assertTrue(filter.includes("voltdb_memory_rss_bytes", MEMORY));
+        assertFalse(filter.includes("voltdb_table_inline_tuple_bytes", TABLE));
+    }
+
+    @Test
+    public void onlyNeededSelectorsArePolled() {
+        VoltDBPrometheusMetricEngine engine = new VoltDBPrometheusMetricEngine("localhost", 0, "", "", false, null);
+        engine.setSupportedStats(EnumSet.of(TABLE, LATENCY));
+        ClusterMetricsSource source = new ClusterMetricsSource(null, engine, 0);
+
+        assertEquals(EnumSet.of(TABLE, LATENCY), ScrapeFilter.ALL.selectorsFor(source));
+        assertEquals(EnumSet.of(TABLE),
+                     ScrapeFilter.parse(new String[] { "voltdb_table_tuple_count", "no_such_metric" }, null)
+                                 .selectorsFor(source));
+        // MEMORY is not polled by this source
+        assertEquals(EnumSet.of(LATENCY),
+                     ScrapeFilter.parse(null, new String[] { "LATENCY,MEMORY" }).selectorsFor(source));
+        assertEquals(EnumSet.noneOf(SupportedStatsSelectors.class),
+                     ScrapeFilter.parse(new String[] { "voltdb_agent_up" }, null).selectorsFor(source));
+    }
+}
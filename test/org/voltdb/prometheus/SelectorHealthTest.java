@@ -0,0 +1,82 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.prometheus.VoltDBPrometheusMetricEngine.SupportedStatsSelectors;
+
+/**
+ * Quarantine with exponential backoff, recovery, and
+ * disabling of unsupported selectors.
+ */
+public class SelectorHealthTest {
+
+    private final SelectorHealth health = new SelectorHealth(SupportedStatsSelectors.QUEUEPRIORITY, "localhost");
+
+    /*
+     * Fails at 'now', and returns the backoff: how long
+     * until the selector may be polled again.
+     */
+    private long fail(long now) {
+        health.recordFailure(now, ClientResponse.CONNECTION_TIMEOUT, "timed out");
+        assertEquals(SelectorHealth.State.QUARANTINED, health.getState());
+        assertFalse(health.isPollable(now));
+        long backoff = 0;
+        while (!health.isPollable(now + backoff)) {
+            backoff += 1000;
+        }
+        return backoff;
+    }
+
+    @Test
+    public void healthyUntilFailure() {
+        assertEquals(SelectorHealth.State.HEALTHY, health.getState());
+        assertTrue(health.isPollable(0));
+    }
+
+    @Test
+    public void backoffDoublesUpToLimit() {
+        long now = 1_000_000;
+        long expected = SelectorHealth.INITIAL_BACKOFF;
+        for (int i = 0; i < 30; i++) {
+            long backoff = fail(now);
+            assertEquals("failure " + (i + 1), expected, backoff);
+            now += backoff;
+            expected = Math.min(expected * 2, SelectorHealth.MAX_BACKOFF);
+        }
+        assertEquals(SelectorHealth.MAX_BACKOFF, fail(now));
+    }
+
+    @Test
+    public void successResetsBackoff() {
+        fail(0);
+        fail(10_000);
+        assertEquals(SelectorHealth.INITIAL_BACKOFF * 4, fail(30_000));
+        health.recordSuccess();
+        assertEquals(SelectorHealth.State.HEALTHY, health.getState());
+        assertTrue(health.isPollable(70_000));
+        assertEquals(SelectorHealth.INITIAL_BACKOFF, fail(70_000));
+    }
+
+    @Test
+    public void unsupportedSelectorIsDisabled() {
+        health.recordFailure(0, ClientResponse.GRACEFUL_FAILURE, "Invalid Statistics selector QUEUEPRIORITY.");
+        assertEquals(SelectorHealth.State.DISABLED, health.getState());
+        assertFalse(health.isPollable(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void otherGracefulFailureIsQuarantined() {
+        health.recordFailure(0, ClientResponse.GRACEFUL_FAILURE, "Server is paused");
+        assertEquals(SelectorHealth.State.QUARANTINED, health.getState());
+        assertTrue(health.isPollable(SelectorHealth.INITIAL_BACKOFF));
+    }
+}
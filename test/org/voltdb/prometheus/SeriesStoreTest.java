@@ -0,0 +1,218 @@
+/*
+ * This file is part of VoltDB.
+ * Copyright (C) 2021 VoltDB Inc.
+ */
+
+package org.voltdb.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Series lookup, delta and counter arithmetic, and eviction
+ * in SeriesStore.
+ */
+public class SeriesStoreTest {
+
+    private static final double DELTA = 1e-9;
+
+    private SeriesStore store;
+    private int gauge;
+
+    @Before
+    public void setUp() {
+        store = new SeriesStore(new String[] { "hostname", "partitionid" }, new String[0], new String[0]);
+        gauge = store.addColumn("test_gauge", "A gauge", null);
+    }
+
+    private static String[] labels(String hostname, String partitionId) {
+        return new String[] { hostname, partitionId };
+    }
+
+    @Test
+    public void sameLabelsFindSameSeries() {
+        store.beginCycle(1000);
+        int a = store.series(labels("host1", "0"));
+        int b = store.series(labels("host1", "1"));
+        int c = store.series(labels("host2", "0"));
+        assertNotEquals(a, b);
+        assertNotEquals(a, c);
+        assertNotEquals(b, c);
+        // equal but not identical strings
+        assertEquals(a, store.series(labels(new String("host1"), new String("0"))));
+        assertEquals(3, store.getSeriesCount());
+    }
+
+    @Test
+    public void nullLabelValueIsDistinct() {
+        store.beginCycle(1000);
+        int a = store.series(labels("host1", null));
+        int b = store.series(labels("host1", ""));
+        assertNotEquals(a, b);
+        assertEquals(a, store.series(labels("host1", null)));
+    }
+
+    @Test
+    public void seriesSurviveGrowth() {
+        store.beginCycle(1000);
+        int count = 5000; // many times the initial capacity
+        for (int i = 0; i < count; i++) {
+            int id = store.series(labels("host" + (i % 7), Integer.toString(i)));
+            assertEquals(i, id);
+            store.set(gauge, id, i);
+        }
+        assertEquals(count, store.getSeriesCount());
+        for (int i = 0; i < count; i++) {
+            int id = store.series(labels("host" + (i % 7), Integer.toString(i)));
+            assertEquals(i, id);
+            assertEquals(i, store.get(gauge, id), DELTA);
+        }
+    }
+
+    @Test
+    public void deltaColumnReportsChangeAndRate() {
+        int delta = store.addDeltaColumn("test_delta", "A delta", null, "test_rate", "A rate");
+        int rate = delta + 1;
+
+        store.beginCycle(1000);
+        int id = store.series(labels("host1", "0"));
+        store.set(delta, id, 10);
+        assertTrue("first value is only a baseline", Double.isNaN(store.get(delta, id)));
+        assertTrue(Double.isNaN(store.get(rate, id)));
+
+        store.beginCycle(3000);
+        assertEquals(id, store.series(labels("host1", "0")));
+        store.set(delta, id, 30);
+        assertEquals(20, store.get(delta, id), DELTA);
+        assertEquals(10, store.get(rate, id), DELTA); // 20 in 2 seconds
+
+        // The counter went down: the host restarted, and the delta is the new value
+        store.beginCycle(4000);
+        store.series(labels("host1", "0"));
+        store.set(delta, id, 5);
+        assertEquals(5, store.get(delta, id), DELTA);
+        assertEquals(5, store.get(rate, id), DELTA);
+    }
+
+    @Test
+    public void rateSpansMissedCycles() {
+        int delta = store.addDeltaColumn("test_delta", "A delta", null, "test_rate", "A rate");
+        int rate = delta + 1;
+        store.beginCycle(1000);
+        int id = store.series(labels("host1", "0"));
+        store.set(delta, id, 0);
+        store.beginCycle(2000); // series not reported
+        store.beginCycle(5000);
+        store.series(labels("host1", "0"));
+        store.set(delta, id, 40);
+        assertEquals(40, store.get(delta, id), DELTA);
+        assertEquals(10, store.get(rate, id), DELTA); // 40 in 4 seconds
+    }
+
+    @Test
+    public void counterColumnNeverDecreases() {
+        int counter = store.addCounterColumn("test_total", "A counter", null);
+        double[] raw = { 10, 15, 3, 5, 5, 1 };
+        double[] expected = { 10, 15, 18, 20, 20, 21 };
+        for (int i = 0; i < raw.length; i++) {
+            store.beginCycle(1000 * (i + 1));
+            int id = store.series(labels("host1", "0"));
+            store.set(counter, id, raw[i]);
+            assertEquals("after raw value " + raw[i], expected[i], store.get(counter, id), DELTA);
+        }
+    }
+
+    @Test
+    public void seriesMissingTooLongAreEvicted() {
+        int counter = store.addCounterColumn("test_total", "A counter", null);
+
+        store.beginCycle(1000);
+        int keep = store.series(labels("host1", "0"));
+        int drop = store.series(labels("host1", "1"));
+        store.set(gauge, keep, 1);
+        store.set(gauge, drop, 2);
+        store.set(counter, drop, 100);
+        assertEquals(0, store.endCycle(2));
+
+        // 'drop' missing for one cycle: kept
+        store.beginCycle(2000);
+        store.set(gauge, store.series(labels("host1", "0")), 11);
+        assertEquals(0, store.endCycle(2));
+        assertEquals(2, store.getSeriesCount());
+
+        // missing for two cycles: evicted
+        store.beginCycle(3000);
+        store.set(gauge, store.series(labels("host1", "0")), 21);
+        assertEquals(1, store.endCycle(2));
+        assertEquals(1, store.getSeriesCount());
+        int id = store.series(labels("host1", "0"));
+        assertEquals(21, store.get(gauge, id), DELTA);
+
+        // A series that comes back starts afresh
+        int back = store.series(labels("host1", "1"));
+        assertTrue(Double.isNaN(store.get(gauge, back)));
+        store.set(counter, back, 7);
+        assertEquals(7, store.get(counter, back), DELTA);
+    }
+
+    @Test
+    public void evictionCompactsRemainingSeries() {
+        store.beginCycle(1000);
+        for (int i = 0; i < 100; i++) {
+            store.set(gauge, store.series(labels("host1", Integer.toString(i))), i);
+        }
+        store.endCycle(1);
+        store.beginCycle(2000);
+        for (int i = 0; i < 100; i += 3) {
+            store.set(gauge, store.series(labels("host1", Integer.toString(i))), i);
+        }
+        assertEquals(66, store.endCycle(1));
+        assertEquals(34, store.getSeriesCount());
+        for (int i = 0; i < 100; i += 3) {
+            int id = store.series(labels("host1", Integer.toString(i)));
+            assertTrue(id < 34);
+            assertEquals(i, store.get(gauge, id), DELTA);
+        }
+        assertEquals(34, store.getSeriesCount());
+    }
+
+    @Test
+    public void zeroMaxMissedNeverEvicts() {
+        store.beginCycle(1000);
+        store.series(labels("host1", "0"));
+        for (int cycle = 2; cycle < 10; cycle++) {
+            store.beginCycle(cycle * 1000);
+            assertEquals(0, store.endCycle(0));
+        }
+        assertEquals(1, store.getSeriesCount());
+    }
+
+    @Test
+    public void renderSkipsSeriesWithoutValue() throws IOException {
+        SeriesStore clustered = new SeriesStore(new String[] { "hostname" }, new String[] { "cluster" },
+                                                new String[] { "east" });
+        int column = clustered.addColumn("test_gauge", "A gauge", null);
+        clustered.beginCycle(1000);
+        clustered.set(column, clustered.series(new String[] { "host1" }), 5);
+        clustered.series(new String[] { "host2" }); // no value
+
+        ExpositionWriter writer = ExpositionWriter.create(ExpositionFormat.TEXT);
+        clustered.render(writer);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.finish().writeTo(out);
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+        assertTrue(text, text.contains("# TYPE test_gauge gauge\n"));
+        assertTrue(text, text.contains("test_gauge{cluster=\"east\",hostname=\"host1\",} 5.0\n"));
+        assertFalse(text, text.contains("host2"));
+    }
+}